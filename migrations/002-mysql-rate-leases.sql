@@ -0,0 +1,3 @@
+CREATE TABLE groupsync_rate_account (account_key varchar(255), primary key (account_key));
+CREATE TABLE groupsync_rate_lease (account_key varchar(255), holder varchar(255), queries integer, counts_until bigint(20));
+CREATE INDEX groupsync_rate_lease_account on groupsync_rate_lease (account_key, counts_until);
@@ -0,0 +1,12 @@
+-- Indexes for the tables read by the "db" group source.  These live in the
+-- source database, not the replication state database, and the table names
+-- below are the defaults from config.properties (group_def_table,
+-- group_users_table and sync_status_table).  Adjust to suit.
+--
+-- With these, the incremental query in DBGroupSource.updatedGroupsSince is a
+-- range scan on ready_for_sync_time, its membership query joins through an
+-- index that covers every column it reads, and markGroupsAsSynced finds its
+-- rows by group_id.
+create index grouper_group_defs_sync on grouper_group_definitions (ready_for_sync_time, group_id, deleted);
+create index grouper_gs_users_group on grouper_groupsync_users (group_id, email, role);
+create index grouper_sync_status_group on grouper_sync_status (group_id);
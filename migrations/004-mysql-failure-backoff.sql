@@ -0,0 +1,4 @@
+-- Groups that keep failing to sync aren't retried until next_eligible_time
+-- (milliseconds since the epoch; 0 means any time).  Kept alongside
+-- failure_count so the backoff survives a restart.
+ALTER TABLE groupsync_source_state ADD next_eligible_time bigint(20) default 0;
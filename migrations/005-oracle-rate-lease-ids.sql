@@ -0,0 +1,3 @@
+-- Lets a process find its own lease again to hand back the queries it
+-- didn't use.
+ALTER TABLE groupsync_rate_lease ADD (lease_id varchar2(255));
@@ -0,0 +1,3 @@
+-- When each value was added to its set (milliseconds since the epoch), so
+-- sets of things that go stale can be pruned.
+ALTER TABLE groupsync_target_store ADD added_time bigint(20) default 0;
@@ -18,8 +18,13 @@ fi
 
 mkdir -p logs
 
+# An always-on flight recording, including our own events (see the jfr
+# package).  Keeps the last few hours on disk and dumps them to logs/ on
+# exit.  For a snapshot while running: jcmd <pid> JFR.dump name=groupsync
+jfr_opts="-XX:StartFlightRecording=name=groupsync,disk=true,maxage=6h,maxsize=500m,dumponexit=true,filename=logs/groupsync.jfr"
+
 # Logging to weekday-based files so that we only keep the last 7 days
 # worth of stuff by default.  Saves having to logrotate.
-java -Dgroupsync-service=true -Xmx1g -Dlogback.configurationFile=config/logback.xml -Djava.security.egd=file:/dev/urandom -cp "libs/*:$myjar" \
+java -Dgroupsync-service=true -Xmx1g $jfr_opts -Dlogback.configurationFile=config/logback.xml -Djava.security.egd=file:/dev/urandom -cp "libs/*:$myjar" \
      edu.nyu.classes.groupsync.main.Main config/config.properties \
      2>&1 | ./log-rotater.pl logs/console.out.%a
@@ -30,8 +30,12 @@ public class Differences {
 
 
     public static class MetadataChange extends Difference {
-        public MetadataChange(Group group) {
+        // The description the group currently has on the target side
+        public String currentDescription;
+
+        public MetadataChange(Group group, String currentDescription) {
             super(group);
+            this.currentDescription = currentDescription;
         }
 
         public String toString() {
@@ -1,7 +1,9 @@
 package edu.nyu.classes.groupsync.api;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 public class Group {
     private String name;
@@ -10,6 +12,11 @@ public class Group {
 
     private List<Membership> members = new ArrayList<>();
 
+    // The IDs the source uses for this group, if they differ from our name
+    // (e.g. DBGroupSource normalizes its group IDs).  Several source groups
+    // can end up with the same name.
+    private Set<String> sourceGroupIds = new LinkedHashSet<>();
+
     public Group(String name, String description) {
         this.name = name;
         this.description = description;
@@ -40,6 +47,14 @@ public class Group {
         lastModifiedTime = time;
     }
 
+    public void addSourceGroupId(String sourceGroupId) {
+        sourceGroupIds.add(sourceGroupId);
+    }
+
+    public Set<String> getSourceGroupIds() {
+        return sourceGroupIds;
+    }
+
     public String toString() {
         return String.format("#<Group '%s' (%d members: %s)>",
                 name,
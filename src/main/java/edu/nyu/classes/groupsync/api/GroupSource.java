@@ -1,9 +1,38 @@
 package edu.nyu.classes.groupsync.api;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
 public interface GroupSource {
     public String getId();
 
     public GroupSet updatedGroupsSince(long time);
 
+    // As above, but leaving out any group whose name `include` rejects.
+    // Sources should skip those before loading their members where they can.
+    // This default just filters afterwards.
+    default public GroupSet updatedGroupsSince(long time, Predicate<String> include) {
+        GroupSet result = updatedGroupsSince(time);
+        List<Group> excluded = new ArrayList<>();
+
+        for (Group group : result) {
+            if (!include.test(group.getName())) {
+                excluded.add(group);
+            }
+        }
+
+        result.removeAll(excluded);
+
+        return result;
+    }
+
     public void markGroupAsSynced(Group group) throws Exception;
+
+    default public void markGroupsAsSynced(Collection<Group> groups) throws Exception {
+        for (Group group : groups) {
+            markGroupAsSynced(group);
+        }
+    }
 }
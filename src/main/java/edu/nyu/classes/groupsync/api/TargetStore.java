@@ -1,9 +1,14 @@
 package edu.nyu.classes.groupsync.api;
 
+import java.util.Collection;
 import java.util.Set;
 
 public interface TargetStore {
     public Set<String> readSet(GroupTarget target, String setName) throws Exception;
+    public Set<String> readSetValues(GroupTarget target, String setName, Collection<String> values) throws Exception;
     public void writeSet(GroupTarget target, String setName, Set<String> value) throws Exception;
+    public void addToSet(GroupTarget target, String setName, Collection<String> values) throws Exception;
+    public void removeFromSet(GroupTarget target, String setName, Collection<String> values) throws Exception;
+    public void removeFromSetAddedBefore(GroupTarget target, String setName, long time) throws Exception;
     public void clearSet(GroupTarget target, String setName) throws Exception;
 }
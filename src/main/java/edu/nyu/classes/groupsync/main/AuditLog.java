@@ -0,0 +1,81 @@
+package edu.nyu.classes.groupsync.main;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.nyu.classes.groupsync.api.Differences;
+
+// One compact line for each change we make (or fail to make) to a target.
+// These go to the "groupsync.audit" logger, which logback.xml sends to its
+// own file so they don't swamp the main log.
+//
+// A big pass can apply hundreds of thousands of diffs, so successful changes
+// can be sampled down (see `configure`), and are dropped if the audit log
+// can't keep up.  Failures are always written: they go through
+// "groupsync.audit.failures", whose appender blocks rather than drops.
+class AuditLog {
+    private static Logger audit = LoggerFactory.getLogger("groupsync.audit");
+    private static Logger failures = LoggerFactory.getLogger("groupsync.audit.failures");
+
+    private static volatile double sampleRate = 1.0;
+
+    // Write this fraction (0.0 to 1.0) of successful changes
+    public static void configure(double sampleRate) {
+        AuditLog.sampleRate = Math.max(0.0, Math.min(1.0, sampleRate));
+    }
+
+    // `outcome` is "applied" for a change that went through, or a short word
+    // for why Google didn't need it (e.g. "duplicate").
+    public static void diff(String targetId, Differences.Difference diff, String outcome) {
+        if (!sampled()) {
+            return;
+        }
+
+        audit.info("target={} {} result={}", targetId, describe(diff), outcome);
+    }
+
+    public static void diffFailed(String targetId, Differences.Difference diff, String reason) {
+        failures.warn("target={} {} result=failed reason=\"{}\"", targetId, describe(diff), reason);
+    }
+
+    public static void groupCreated(String targetId, String groupName) {
+        if (!sampled()) {
+            return;
+        }
+
+        audit.info("target={} action=create_group group={} result=applied", targetId, groupName);
+    }
+
+    public static void groupCreateFailed(String targetId, String groupName, String reason) {
+        failures.warn("target={} action=create_group group={} result=failed reason=\"{}\"", targetId, groupName, reason);
+    }
+
+    private static boolean sampled() {
+        if (!audit.isInfoEnabled()) {
+            return false;
+        }
+
+        double rate = sampleRate;
+
+        return rate >= 1.0 || (rate > 0.0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    private static String describe(Differences.Difference diff) {
+        if (diff instanceof Differences.MemberAdd) {
+            Differences.MemberAdd add = (Differences.MemberAdd) diff;
+            return String.format("action=add_member group=%s user=%s role=%s", add.group.getName(), add.userId, add.role);
+        } else if (diff instanceof Differences.MemberDrop) {
+            Differences.MemberDrop drop = (Differences.MemberDrop) diff;
+            return String.format("action=drop_member group=%s user=%s", drop.group.getName(), drop.userId);
+        } else if (diff instanceof Differences.MemberRoleChange) {
+            Differences.MemberRoleChange change = (Differences.MemberRoleChange) diff;
+            return String.format("action=change_role group=%s user=%s role=%s", change.group.getName(), change.userId, change.role);
+        } else if (diff instanceof Differences.MetadataChange) {
+            return String.format("action=change_metadata group=%s", diff.group.getName());
+        } else {
+            return String.format("action=%s group=%s", diff.getClass().getSimpleName(), diff.group.getName());
+        }
+    }
+}
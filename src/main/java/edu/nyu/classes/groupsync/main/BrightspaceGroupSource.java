@@ -3,6 +3,7 @@ package edu.nyu.classes.groupsync.main;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +38,10 @@ public class BrightspaceGroupSource implements GroupSource {
     }
 
     public GroupSet updatedGroupsSince(long time) {
+        return updatedGroupsSince(time, (groupName) -> true);
+    }
+
+    public GroupSet updatedGroupsSince(long time, Predicate<String> include) {
         logger.info("Return updates for {} since {}", id, time);
 
         final GroupSet result = new GroupSet();
@@ -46,9 +51,16 @@ public class BrightspaceGroupSource implements GroupSource {
         for (String courseOfferingId : brightspace.listSitesForSync()) {
             try {
                 BrightspaceClient.CourseOfferingData siteInfo = brightspace.fetchCourseData(courseOfferingId);
+                String groupName = sanitizeName(String.format("%s_%s", siteInfo.code, courseOfferingId));
+
+                if (!include.test(groupName)) {
+                    // No need to fetch its users
+                    continue;
+                }
+
                 List<BrightspaceClient.BrightspaceSiteUser> users = brightspace.getActiveSiteUsers(courseOfferingId);
 
-                Group newGroup = result.createOrGetGroup(new Group(sanitizeName(String.format("%s_%s", siteInfo.code, courseOfferingId)),
+                Group newGroup = result.createOrGetGroup(new Group(groupName,
                                                                    chopDescription(String.format("All Members - %s", siteInfo.title), 72)));
 
                 groupNameToCourseOfferingId.put(newGroup.getName(), courseOfferingId);
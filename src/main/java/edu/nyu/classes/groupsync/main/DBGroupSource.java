@@ -2,6 +2,14 @@ package edu.nyu.classes.groupsync.main;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Predicate;
 
 import javax.sql.DataSource;
 
@@ -43,31 +51,48 @@ public class DBGroupSource implements GroupSource {
     }
 
     public GroupSet updatedGroupsSince(long time) {
+        return updatedGroupsSince(time, (groupName) -> true);
+    }
+
+    public GroupSet updatedGroupsSince(long time, Predicate<String> include) {
         logger.info("Return updates for {} since {}", id, time);
 
         final GroupSet result = new GroupSet();
+        final Set<String> excludedGroupNames = new HashSet<>();
 
         DB.transaction(db, new DBAction<Void>() {
             @Override
             public Void call(DBConnection c) throws SQLException {
                 // Add all groups -- even the ones with no members
-                DBPreparedStatement groups = c.run("select lower(replace(ggd.group_id, ':', '-')) group_id, ggd.description, ggd.ready_for_sync_time" +
+                //
+                // We map group IDs to names here rather than in SQL, so that
+                // both queries can be answered from the indexes in
+                // migrations/003-*-db-source-indexes.sql.
+                DBPreparedStatement groups = c.run("select ggd.group_id, ggd.description, ggd.ready_for_sync_time" +
                         " from " + groupInfoTable + " ggd " +
                         " where ggd.ready_for_sync_time >= ?");
 
                 groups.param(time);
 
                 for (ResultSet rs : groups.executeQuery()) {
-                    String groupName = rs.getString("group_id");
+                    String sourceGroupId = rs.getString("group_id");
+                    String groupName = groupName(sourceGroupId);
+
+                    if (!include.test(groupName)) {
+                        excludedGroupNames.add(groupName);
+                        continue;
+                    }
+
                     String description = rs.getString("description");
                     long lastModifiedTime = rs.getLong("ready_for_sync_time");
 
                     Group group = result.createOrGetGroup(new Group(groupName, description));
                     group.setLastModifiedTime(lastModifiedTime);
+                    group.addSourceGroupId(sourceGroupId);
                 }
 
                 // Populate any members for non-deleted groups
-                DBPreparedStatement members = c.run("select lower(replace(ggu.group_id, ':', '-')) group_id, ggu.role, ggu.email" +
+                DBPreparedStatement members = c.run("select ggu.group_id, ggu.role, ggu.email" +
                         " from " + groupInfoTable + " ggd " +
                         " inner join " + memberInfoTable + " ggu " +
                         " on ggd.group_id = ggu.group_id" +
@@ -76,7 +101,12 @@ public class DBGroupSource implements GroupSource {
                 members.param(time);
 
                 for (ResultSet rs : members.executeQuery()) {
-                    String groupName = rs.getString("group_id");
+                    String groupName = groupName(rs.getString("group_id"));
+
+                    if (excludedGroupNames.contains(groupName)) {
+                        continue;
+                    }
+
                     String email = rs.getString("email");
                     String role = mapRole(rs.getString("role"));
 
@@ -101,25 +131,64 @@ public class DBGroupSource implements GroupSource {
     }
 
     public void markGroupAsSynced(Group group) throws Exception {
+        markGroupsAsSynced(Collections.singletonList(group));
+    }
+
+    public void markGroupsAsSynced(Collection<Group> groups) throws Exception {
+        if (groups.isEmpty()) {
+            return;
+        }
+
         final String table = syncStatusTable;
 
+        // Where we can, we match on the source's own group IDs so the
+        // database can use its index.  Groups that didn't come from us won't
+        // have them, so we fall back to matching on the normalized name.
+        final List<String> sourceGroupIds = new ArrayList<>();
+        final List<String> unmatchedGroupNames = new ArrayList<>();
+
+        for (Group group : groups) {
+            if (group.getSourceGroupIds().isEmpty()) {
+                unmatchedGroupNames.add(group.getName());
+            } else {
+                sourceGroupIds.addAll(group.getSourceGroupIds());
+            }
+        }
+
         DB.transaction(db, new DBAction<Void>() {
             @Override
             public Void call(DBConnection c) throws SQLException {
-                String sql = null;
+                String update = null;
 
                 if (c.isOracle()) {
-                    sql = "update " + table + " set status = 'synced', update_mtime = systimestamp where lower(replace(group_id, ':', '-')) = ?";
+                    update = "update " + table + " set status = 'synced', update_mtime = systimestamp";
                 } else if (c.isMySQL()) {
-                    sql = "update " + table + " set status = 'synced', update_mtime = current_timestamp() where lower(replace(group_id, ':', '-')) = ?";
+                    update = "update " + table + " set status = 'synced', update_mtime = current_timestamp()";
                 } else {
                     throw new RuntimeException("No update SQL provided for this database type");
                 }
 
-                DBPreparedStatement update = c.run(sql);
+                for (List<String> chunk : DB.partition(sourceGroupIds, DB.MAX_IN_CLAUSE_SIZE)) {
+                    c.run(update + " where group_id in (" + c.placeholders(chunk) + ")")
+                        .stringParams(chunk)
+                        .executeUpdate();
+                }
+
+                if (!unmatchedGroupNames.isEmpty()) {
+                    DBPreparedStatement byName = c.run(update + " where lower(replace(group_id, ':', '-')) = ?");
 
-                update.param(group.getName());
-                update.executeUpdate();
+                    try {
+                        for (String groupName : unmatchedGroupNames) {
+                            byName.clearParameters();
+                            byName.param(groupName);
+                            byName.addBatch();
+                        }
+
+                        byName.executeBatch();
+                    } finally {
+                        byName.close();
+                    }
+                }
 
                 c.commit();
 
@@ -128,6 +197,12 @@ public class DBGroupSource implements GroupSource {
         });
     }
 
+    // Group IDs like 'SOME:Group' become group names like 'some-group'.  This
+    // has to agree with the fallback in markGroupsAsSynced.
+    private String groupName(String sourceGroupId) {
+        return sourceGroupId.replace(':', '-').toLowerCase(Locale.ROOT);
+    }
+
     private String mapRole(String role) {
         if ("viewer".equals(role)) {
             return "member";
@@ -0,0 +1,169 @@
+package edu.nyu.classes.groupsync.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.nyu.classes.groupsync.api.Differences;
+import edu.nyu.classes.groupsync.api.Group;
+import edu.nyu.classes.groupsync.api.GroupSet;
+import edu.nyu.classes.groupsync.api.GroupTarget;
+
+// The Replicator only looks at a group on the target when that group changes
+// in the source, so anything changed by hand on the target side (e.g. through
+// the Google UI) sticks around until then.
+//
+// This walks our local mirror of the target (groupsync_target_state) a page of
+// groups at a time, compares each page against what the target really has,
+// and puts back any memberships that have drifted.  It's intended to run with
+// a target whose rate limiter only has a small share of the real budget.
+public class DriftReconciler extends Thread {
+    private static Logger logger = LoggerFactory.getLogger(DriftReconciler.class);
+
+    private Replicator replicator;
+    private GroupTarget target;
+    private ReplicationState state;
+    private long pollIntervalMs;
+    private int pageSize;
+    private int correctionBatchSize;
+
+    public DriftReconciler(Replicator replicator, GroupTarget target, ReplicationState state, long pollIntervalMs, int pageSize,
+                           int correctionBatchSize) {
+        this.replicator = replicator;
+        this.target = target;
+        this.state = state;
+        this.pollIntervalMs = pollIntervalMs;
+        this.pageSize = pageSize;
+        this.correctionBatchSize = correctionBatchSize;
+
+        this.setName(String.format("DriftReconciler_%s", target.getId()));
+        this.setPriority(Thread.MIN_PRIORITY);
+        this.setDaemon(true);
+    }
+
+    public void run() {
+        String lastGroupName = null;
+
+        while (true) {
+            try {
+                List<String> page = state.targetGroupNames(target.getId(), lastGroupName, pageSize);
+
+                if (page.isEmpty()) {
+                    // Made it all the way through.  Rest a while before starting over.
+                    logger.info("Finished checking {} for drift", target.getId());
+                    lastGroupName = null;
+                    sleepQuietly(pollIntervalMs);
+                    continue;
+                }
+
+                reconcile(page);
+
+                lastGroupName = page.get(page.size() - 1);
+            } catch (Exception e) {
+                logger.error("Caught an exception while checking {} for drift: {}",
+                        target.getId(), e.getMessage(), e);
+
+                sleepQuietly(pollIntervalMs);
+            }
+        }
+    }
+
+    private void reconcile(List<String> groupNames) throws Exception {
+        // Have the Replicator tell us which of these groups it changes while
+        // we're working on them.
+        replicator.targetLock().lock();
+        try {
+            replicator.watchGroups(groupNames);
+        } finally {
+            replicator.targetLock().unlock();
+        }
+
+        try {
+            correctDrift(groupNames);
+        } finally {
+            replicator.targetLock().lock();
+            try {
+                replicator.watchGroups(Collections.emptyList());
+            } finally {
+                replicator.targetLock().unlock();
+            }
+        }
+    }
+
+    private void correctDrift(List<String> groupNames) throws Exception {
+        GroupSet groupsFromTarget = target.fetchGroupsForNames(groupNames);
+        GroupSet mirroredGroups = state.targetGroupMemberships(target.getId(), groupNames);
+
+        // If a group has gone missing from the target, that's for the
+        // Replicator to sort out (if the source still has it).
+        GroupSet expectedGroups = new GroupSet();
+        for (Group g : mirroredGroups) {
+            if (groupsFromTarget.hasGroup(g.getName())) {
+                expectedGroups.createOrGetGroup(g);
+            }
+        }
+
+        List<Differences.Difference> corrections = new ArrayList<>();
+        for (Differences.Difference diff : new GroupSetDiffer().diff(groupsFromTarget, expectedGroups)) {
+            // We don't mirror group descriptions, so only membership drift counts.
+            if (diff instanceof Differences.MemberDifference) {
+                corrections.add(diff);
+            }
+        }
+
+        if (corrections.isEmpty()) {
+            return;
+        }
+
+        logger.info("Correcting {} membership changes made outside of groupsync on {}",
+                corrections.size(), target.getId());
+
+        long skipped = 0;
+
+        // Our requests only get a small share of the rate limit, so holding
+        // the Replicator off for the whole lot could stall its pass for
+        // minutes.  Apply a batch at a time, letting it in between.
+        for (int start = 0; start < corrections.size(); start += correctionBatchSize) {
+            List<Differences.Difference> batch = new ArrayList<>(correctionBatchSize);
+
+            replicator.targetLock().lock();
+            try {
+                // Our view of any group the Replicator has touched may already
+                // be out of date.  We'll get those next time around.
+                Set<String> touched = replicator.touchedWatchedGroups();
+
+                for (Differences.Difference diff : corrections.subList(start, Math.min(start + correctionBatchSize, corrections.size()))) {
+                    if (touched.contains(diff.group.getName())) {
+                        skipped++;
+                    } else {
+                        batch.add(diff);
+                    }
+                }
+
+                if (!batch.isEmpty()) {
+                    // Our mirror already has these changes, since it's what
+                    // we're restoring.
+                    target.applyDiffs(batch, state);
+                }
+            } finally {
+                replicator.targetLock().unlock();
+            }
+        }
+
+        if (skipped > 0) {
+            logger.info("Replicator touched some groups on {} while we were checking them for drift.  Skipped {} corrections.",
+                    target.getId(), skipped);
+        }
+    }
+
+    private void sleepQuietly(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+        }
+    }
+}
@@ -7,7 +7,10 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -38,6 +41,10 @@ import edu.nyu.classes.groupsync.api.Group;
 import edu.nyu.classes.groupsync.api.GroupSet;
 import edu.nyu.classes.groupsync.api.GroupTarget;
 import edu.nyu.classes.groupsync.api.TargetStore;
+import edu.nyu.classes.groupsync.main.metrics.Metrics;
+import edu.nyu.classes.groupsync.main.tracing.Span;
+import edu.nyu.classes.groupsync.main.tracing.Tracer;
+import edu.nyu.classes.groupsync.main.jfr.GoogleBatchEvent;
 
 public class GoogleGroupTarget implements GroupTarget {
     private static Logger logger = LoggerFactory.getLogger(GoogleGroupTarget.class);
@@ -47,15 +54,34 @@ public class GoogleGroupTarget implements GroupTarget {
     private int requestsPerBatch;
     private String defaultGroupDescription;
     private RateLimiter rateLimiter;
+    private int settingsConcurrency;
+    private int settingsAttempts;
+
+    // Groups with at most this many changes go in the INTERACTIVE lane, as do
+    // fetches for passes covering at most this many groups.
+    private int interactiveLimit;
+
+    // True if we're working for the DriftReconciler (see forReconciliation)
+    private boolean reconciling;
 
     private static AtomicBoolean repairGroupsRun = new AtomicBoolean(false);
 
-    public GoogleGroupTarget(String id, int requestsPerBatch, String defaultGroupDescription, RateLimiter rateLimiter, GoogleClient google) {
+    public GoogleGroupTarget(String id, int requestsPerBatch, String defaultGroupDescription, RateLimiter rateLimiter, GoogleClient google,
+                             int settingsConcurrency, int settingsAttempts, int interactiveLimit) {
+        this(id, requestsPerBatch, defaultGroupDescription, rateLimiter, google, settingsConcurrency, settingsAttempts, interactiveLimit, false);
+    }
+
+    private GoogleGroupTarget(String id, int requestsPerBatch, String defaultGroupDescription, RateLimiter rateLimiter, GoogleClient google,
+                              int settingsConcurrency, int settingsAttempts, int interactiveLimit, boolean reconciling) {
         this.id = id;
         this.google = google;
         this.requestsPerBatch = requestsPerBatch;
         this.defaultGroupDescription = defaultGroupDescription;
         this.rateLimiter = rateLimiter;
+        this.settingsConcurrency = settingsConcurrency;
+        this.settingsAttempts = settingsAttempts;
+        this.interactiveLimit = interactiveLimit;
+        this.reconciling = reconciling;
 
         // Here's how to dump all Google back and forth:
 
@@ -66,7 +92,7 @@ public class GoogleGroupTarget implements GroupTarget {
         // logHandler.setLevel(java.util.logging.Level.ALL);
         // httpLogger.addHandler(logHandler);
 
-        if (repairGroupsRun.getAndSet(true)) {
+        if (!reconciling && repairGroupsRun.getAndSet(true)) {
             logger.info("Repairing existing groups!");
             try {
                 repairExistingGroups();
@@ -81,8 +107,43 @@ public class GoogleGroupTarget implements GroupTarget {
         return id;
     }
 
+    // The same target, for use by the DriftReconciler.  Its Google requests
+    // are metered by `rateLimiter` instead of ours, and go in the
+    // RECONCILIATION and REPAIR lanes.
+    public GoogleGroupTarget forReconciliation(RateLimiter rateLimiter) {
+        return new GoogleGroupTarget(id, requestsPerBatch, defaultGroupDescription, rateLimiter, google,
+                                     settingsConcurrency, settingsAttempts, interactiveLimit, true);
+    }
+
+    private Lane fetchLane(int groupCount) {
+        if (reconciling) {
+            return Lane.RECONCILIATION;
+        }
+
+        return (groupCount <= interactiveLimit) ? Lane.INTERACTIVE : Lane.BULK;
+    }
+
+    private Lane changeLane(int changeCount) {
+        if (reconciling) {
+            return Lane.REPAIR;
+        }
+
+        return (changeCount <= interactiveLimit) ? Lane.INTERACTIVE : Lane.BULK;
+    }
+
     private static String SETTINGS_STATE_KEY = "GROUPS_NEEDING_SETTINGS";
 
+    // Members the DriftReconciler tried to put back but Google had never
+    // heard of (see MemberDiffAppliedHandler).  Our mirror still lists them,
+    // so it skips these instead of retrying them every sweep.  Entries are
+    // dropped after UNKNOWN_MEMBER_RETRY_MS, so members who have since gone
+    // from our mirror don't stay forever, and the ones who haven't get
+    // another try.
+    private static String UNKNOWN_MEMBERS_STATE_KEY = "UNKNOWN_MEMBERS";
+    private static long UNKNOWN_MEMBER_RETRY_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    private long lastUnknownMemberPruneTime = 0;
+
     public void repairExistingGroups() {
         if (!new File("/tmp/groupsync_files_to_fix.txt").exists()) {
             logger.info("No groups to fix file found.");
@@ -165,16 +226,21 @@ public class GoogleGroupTarget implements GroupTarget {
         // so we need to store some state to act as a write ahead log.  If we
         // crash between creating the group and applying its settings, we can
         // pick up where we left off.
+        //
+        // Entries are added and removed one group at a time, so the log only
+        // ever holds the groups that are still outstanding.
         Set<String> groupsNeedingSettings = null;
 
         try {
             groupsNeedingSettings = state.readSet(this, SETTINGS_STATE_KEY);
 
+            List<String> newGroupKeys = new ArrayList<>(newGroups.size());
             for (Group g : newGroups) {
-                groupsNeedingSettings.add(g.getName() + "@" + google.getDomain());
+                newGroupKeys.add(domainKey(g));
             }
 
-            state.writeSet(this, SETTINGS_STATE_KEY, groupsNeedingSettings);
+            state.addToSet(this, SETTINGS_STATE_KEY, newGroupKeys);
+            groupsNeedingSettings.addAll(newGroupKeys);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -187,7 +253,7 @@ public class GoogleGroupTarget implements GroupTarget {
                 Directory directory = google.getDirectory();
                 Directory.Groups groups = directory.groups();
 
-                LimitedBatchRequest batch = new LimitedBatchRequest(directory);
+                LimitedBatchRequest batch = new LimitedBatchRequest(directory, Lane.CREATION, QuotaClass.DIRECTORY_WRITE);
 
                 for (Group g : newGroups) {
                     com.google.api.services.directory.model.Group googleGroup =
@@ -196,8 +262,6 @@ public class GoogleGroupTarget implements GroupTarget {
                     googleGroup.setDescription(g.getDescription());
                     googleGroup.setEmail(g.getName() + "@" + google.getDomain());
 
-                    logger.info("Creating new group in Google: {}", g.getName());
-
                     Directory.Groups.Insert groupRequest = groups.insert(googleGroup);
                     batch.queue(groupRequest, new GroupCreateHandler(g, (failedGroup) -> {
                         failedGroups.add(failedGroup);
@@ -208,11 +272,12 @@ public class GoogleGroupTarget implements GroupTarget {
 
                 // If any groups failed to create, remove them from our WAL and blow up
                 if (!failedGroups.isEmpty()) {
+                    List<String> failedGroupKeys = new ArrayList<>(failedGroups.size());
                     for (Group group : failedGroups) {
-                        groupsNeedingSettings.remove(group.getName() + "@" + google.getDomain());
+                        failedGroupKeys.add(domainKey(group));
                     }
 
-                    state.writeSet(this, SETTINGS_STATE_KEY, groupsNeedingSettings);
+                    state.removeFromSet(this, SETTINGS_STATE_KEY, failedGroupKeys);
 
                     throw new RuntimeException(String.format("%d groups failed to create", failedGroups.size()));
                 }
@@ -259,42 +324,51 @@ public class GoogleGroupTarget implements GroupTarget {
             // all of its requested settings.
             //
             // Google engineers are still investigating this, so we're using direct requests
-            // for the moment.
+            // for the moment.  To avoid doing thousands of these one after the other, we
+            // run a few concurrently and read back each group's settings to check that
+            // they were applied.
             //
             try {
-                Groupssettings settings = google.getGroupSettings();
-                Groupssettings.Groups groups = settings.groups();
-
-                for (String groupKey : groupsNeedingSettings) {
-                    Groups groupSettings = new Groups();
+                GroupSettingsApplier applier = new GroupSettingsApplier(id, google, rateLimiter, Lane.CREATION, settingsConcurrency, settingsAttempts);
 
-                    groupSettings.setWhoCanPostMessage("ALL_MEMBERS_CAN_POST");
-                    groupSettings.setAllowExternalMembers("true");
-                    groupSettings.setWhoCanJoin("INVITED_CAN_JOIN");
-                    groupSettings.setIsArchived("true");
-                    groupSettings.setDescription(defaultGroupDescription);
-                    groupSettings.setWhoCanViewMembership("ALL_MANAGERS_CAN_VIEW");
-                    groupSettings.setWhoCanContactOwner("ALL_MANAGERS_CAN_CONTACT");
-
-                    groupSettings.setWhoCanModerateMembers("NONE");
-                    groupSettings.setWhoCanLeaveGroup("NONE_CAN_LEAVE");
-
-                    groupSettings.setWhoCanViewGroup("ALL_MEMBERS_CAN_VIEW");
-                    groupSettings.setWhoCanDiscoverGroup("ALL_MEMBERS_CAN_DISCOVER");
+                // Each group comes out of our WAL as soon as it's done.  The
+                // stragglers stay put so we retry them next time.
+                Set<String> configuredGroups = applier.apply(groupsNeedingSettings, desiredGroupSettings(), (groupKey) -> {
+                    try {
+                        state.removeFromSet(this, SETTINGS_STATE_KEY, Collections.singletonList(groupKey));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
 
-                    Groupssettings.Groups.Patch settingsRequest = groups.patch(groupKey, groupSettings);
-                    settingsRequest.execute();
+                if (configuredGroups.size() < groupsNeedingSettings.size()) {
+                    throw new RuntimeException(String.format("%d groups failed to configure",
+                                                             groupsNeedingSettings.size() - configuredGroups.size()));
                 }
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
         }
+    }
 
-        try {
-            state.clearSet(this, SETTINGS_STATE_KEY);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    private Groups desiredGroupSettings() {
+        Groups groupSettings = new Groups();
+
+        groupSettings.setWhoCanPostMessage("ALL_MEMBERS_CAN_POST");
+        groupSettings.setAllowExternalMembers("true");
+        groupSettings.setWhoCanJoin("INVITED_CAN_JOIN");
+        groupSettings.setIsArchived("true");
+        groupSettings.setDescription(defaultGroupDescription);
+        groupSettings.setWhoCanViewMembership("ALL_MANAGERS_CAN_VIEW");
+        groupSettings.setWhoCanContactOwner("ALL_MANAGERS_CAN_CONTACT");
+
+        groupSettings.setWhoCanModerateMembers("NONE");
+        groupSettings.setWhoCanLeaveGroup("NONE_CAN_LEAVE");
+
+        groupSettings.setWhoCanViewGroup("ALL_MEMBERS_CAN_VIEW");
+        groupSettings.setWhoCanDiscoverGroup("ALL_MEMBERS_CAN_DISCOVER");
+
+        return groupSettings;
     }
 
     public GroupSet fetchGroupsForNames(Collection<String> groupNames) {
@@ -307,7 +381,7 @@ public class GoogleGroupTarget implements GroupTarget {
             Directory directory = google.getDirectory();
             Directory.Groups groups = directory.groups();
 
-            LimitedBatchRequest batch = new LimitedBatchRequest(directory);
+            LimitedBatchRequest batch = new LimitedBatchRequest(directory, fetchLane(groupNames.size()), QuotaClass.DIRECTORY_READ);
 
             for (String groupName : groupNames) {
                 Directory.Groups.Get groupRequest = groups.get(domainKey(groupName));
@@ -329,35 +403,23 @@ public class GoogleGroupTarget implements GroupTarget {
         logger.info("Fetching group memberships for {} groups", groupList.size());
 
         // This is a little complicated.  We have M groups, and each group might
-        // require N pages to be fetched.  So, keep a work queue of groups to
-        // pages and keep firing batches of requests until we've got everything.
+        // require N pages to be fetched.  We queue up the first page of every
+        // group, and as each page comes back its handler queues the next page
+        // for that group at the front of the queue.  So each batch carries on
+        // with the groups that have more pages and fills the rest of its slots
+        // with other groups' first pages.  Batches stay full, and our largest
+        // group doesn't end up paging through on its own at the end.
         try {
             Directory directory = google.getDirectory();
             Directory.Members members = directory.members();
 
-            Map<Group, String> groupsToFetch = new HashMap<>(groupList.size());
+            LimitedBatchRequest batch = new LimitedBatchRequest(directory, fetchLane(groupNames.size()), QuotaClass.DIRECTORY_READ);
+
             for (Group group : groupList) {
-                // Start with our initial set of groups.  Empty string means "no page token yet".
-                groupsToFetch.put(group, "");
+                batch.queue(memberListRequest(members, group, null), new MemberListHandler(members, group, batch));
             }
 
-            while (!groupsToFetch.isEmpty()) {
-                LimitedBatchRequest batch = new LimitedBatchRequest(directory);
-
-                for (Group group : groupsToFetch.keySet()) {
-                    Directory.Members.List membersRequest = members.list(domainKey(group));
-                    if (!groupsToFetch.get(group).isEmpty()) {
-                        // apply the next page token
-                        membersRequest.setPageToken(groupsToFetch.get(group));
-                    }
-
-                    // Our handler will take responsibility for either updating
-                    // the page token or removing the group from the work queue.
-                    batch.queue(membersRequest, new MemberListHandler(group, groupsToFetch));
-                }
-
-                batch.execute();
-            }
+            batch.execute();
 
             return result;
         } catch (Exception e) {
@@ -365,6 +427,20 @@ public class GoogleGroupTarget implements GroupTarget {
         }
     }
 
+    // The most Google will give us in one page of members
+    private static int MEMBERS_PAGE_SIZE = 200;
+
+    private Directory.Members.List memberListRequest(Directory.Members members, Group group, String pageToken) throws IOException {
+        Directory.Members.List membersRequest = members.list(domainKey(group));
+        membersRequest.setMaxResults(MEMBERS_PAGE_SIZE);
+
+        if (pageToken != null) {
+            membersRequest.setPageToken(pageToken);
+        }
+
+        return membersRequest;
+    }
+
 
     private String domainKey(Group group) {
         return domainKey(group.getName());
@@ -377,7 +453,98 @@ public class GoogleGroupTarget implements GroupTarget {
 
     public Collection<Differences.Difference> applyDiffs(Collection<Differences.Difference> diffs, TargetStore state) {
         List<Differences.Difference> appliedDiffs = new ArrayList<>();
+        List<Differences.MemberAdd> unknownMemberAdds = new ArrayList<>();
+
+        Set<String> unknownMembers = reconciling ? readUnknownMembers(diffs, state) : Collections.emptySet();
+
+        if (!unknownMembers.isEmpty()) {
+            List<Differences.Difference> toApply = new ArrayList<>(diffs.size());
+
+            for (Differences.Difference d : diffs) {
+                if (d instanceof Differences.MemberAdd && unknownMembers.contains(memberKey((Differences.MemberAdd) d))) {
+                    appliedDiffs.add(d);
+                    AuditLog.diff(id, d, "skipped_unknown_user");
+                } else {
+                    toApply.add(d);
+                }
+            }
 
+            diffs = toApply;
+        }
+
+        // Sort the changes into lanes by the number of changes to their group,
+        // so a few small changes don't wait behind somebody's bulk load.
+        Map<String, Integer> changeCounts = new HashMap<>();
+        for (Differences.Difference d : diffs) {
+            changeCounts.merge(d.group.getName(), 1, Integer::sum);
+        }
+
+        Map<Lane, List<Differences.Difference>> diffsByLane = new EnumMap<>(Lane.class);
+        for (Differences.Difference d : diffs) {
+            diffsByLane.computeIfAbsent(changeLane(changeCounts.get(d.group.getName())), (lane) -> new ArrayList<>()).add(d);
+        }
+
+        // Highest priority lanes first
+        for (Map.Entry<Lane, List<Differences.Difference>> entry : diffsByLane.entrySet()) {
+            applyDiffs(entry.getKey(), entry.getValue(), appliedDiffs, unknownMemberAdds);
+        }
+
+        if (reconciling) {
+            recordUnknownMembers(unknownMemberAdds, state);
+        }
+
+        return appliedDiffs;
+    }
+
+    // The members we're about to add that Google didn't know last time
+    private Set<String> readUnknownMembers(Collection<Differences.Difference> diffs, TargetStore state) {
+        List<String> keys = new ArrayList<>();
+        for (Differences.Difference d : diffs) {
+            if (d instanceof Differences.MemberAdd) {
+                keys.add(memberKey((Differences.MemberAdd) d));
+            }
+        }
+
+        try {
+            pruneUnknownMembers(state);
+
+            return state.readSetValues(this, UNKNOWN_MEMBERS_STATE_KEY, keys);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Forget members we gave up on a while ago.  Checked at most hourly.
+    private void pruneUnknownMembers(TargetStore state) throws Exception {
+        long now = System.currentTimeMillis();
+
+        if (now - lastUnknownMemberPruneTime < 60 * 60 * 1000) {
+            return;
+        }
+
+        state.removeFromSetAddedBefore(this, UNKNOWN_MEMBERS_STATE_KEY, now - UNKNOWN_MEMBER_RETRY_MS);
+        lastUnknownMemberPruneTime = now;
+    }
+
+    private void recordUnknownMembers(List<Differences.MemberAdd> unknownMemberAdds, TargetStore state) {
+        Set<String> keys = new HashSet<>();
+        for (Differences.MemberAdd add : unknownMemberAdds) {
+            keys.add(memberKey(add));
+        }
+
+        try {
+            state.addToSet(this, UNKNOWN_MEMBERS_STATE_KEY, keys);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String memberKey(Differences.MemberAdd add) {
+        return domainKey(add.group) + " " + add.userId;
+    }
+
+    private void applyDiffs(Lane lane, Collection<Differences.Difference> diffs, List<Differences.Difference> appliedDiffs,
+                            List<Differences.MemberAdd> unknownMemberAdds) {
         Directory directory = null;
         try {
             directory = google.getDirectory();
@@ -386,13 +553,13 @@ public class GoogleGroupTarget implements GroupTarget {
         }
 
         // Handle metadata changes first
-        handleMetadataChanges(diffs, appliedDiffs);
+        handleMetadataChanges(lane, diffs, appliedDiffs);
 
         // Membership changes
         try {
             Directory.Members members = directory.members();
 
-            LimitedBatchRequest batch = new LimitedBatchRequest(directory);
+            LimitedBatchRequest batch = new LimitedBatchRequest(directory, lane, QuotaClass.DIRECTORY_WRITE);
 
             //
             // Deletions
@@ -401,12 +568,10 @@ public class GoogleGroupTarget implements GroupTarget {
                     continue;
                 }
 
-                logger.info("Deleting user membership: {}", d);
-
                 Directory.Members.Delete deleteRequest = members.delete(domainKey(d.group),
                         ((Differences.MemberDrop) d).userId);
 
-                batch.queue(deleteRequest, new MemberDiffAppliedHandler(d, appliedDiffs));
+                batch.queue(deleteRequest, new MemberDiffAppliedHandler(d, appliedDiffs, unknownMemberAdds));
             }
 
             //
@@ -416,15 +581,13 @@ public class GoogleGroupTarget implements GroupTarget {
                     continue;
                 }
 
-                logger.info("Adding group member: {}", d);
-
                 Member m = new Member();
                 m.setEmail(((Differences.MemberAdd) d).userId);
                 m.setRole(((Differences.MemberAdd) d).role.toString());
 
                 Directory.Members.Insert insertRequest = members.insert(domainKey(d.group), m);
 
-                batch.queue(insertRequest, new MemberDiffAppliedHandler(d, appliedDiffs));
+                batch.queue(insertRequest, new MemberDiffAppliedHandler(d, appliedDiffs, unknownMemberAdds));
             }
 
             //
@@ -434,8 +597,6 @@ public class GoogleGroupTarget implements GroupTarget {
                     continue;
                 }
 
-                logger.info("Changing user role: {}", d);
-
                 Member m = new Member();
                 m.setEmail(domainKey(((Differences.MemberRoleChange) d).userId));
                 m.setRole(((Differences.MemberRoleChange) d).role.toString());
@@ -444,7 +605,7 @@ public class GoogleGroupTarget implements GroupTarget {
                         ((Differences.MemberRoleChange) d).userId,
                         m);
 
-                batch.queue(updateRequest, new MemberDiffAppliedHandler(d, appliedDiffs));
+                batch.queue(updateRequest, new MemberDiffAppliedHandler(d, appliedDiffs, unknownMemberAdds));
             }
 
             //
@@ -453,62 +614,37 @@ public class GoogleGroupTarget implements GroupTarget {
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-
-        return appliedDiffs;
     }
 
-    private void handleMetadataChanges(Collection<Differences.Difference> diffs, List<Differences.Difference> appliedDiffs) {
-        // For each metadata change, we'll fetch the settings for that group (to
-        // get its description, just in case the instructor has changed it).
-        // Then, combine that description to the name change and update the
-        // whole shebang.
-
-        // Fetch existing descriptions
-        Map<Group, String> groupDescriptions = new HashMap<>();
-
-        try {
-            Groupssettings settings = google.getGroupSettings();
-            Groupssettings.Groups groups = settings.groups();
-
-            LimitedBatchRequest batch = new LimitedBatchRequest(settings);
-
-            for (Differences.Difference d : diffs) {
-                if (!(d instanceof Differences.MetadataChange)) {
-                    continue;
-                }
-
-                Groupssettings.Groups.Get groupSettingsRequest = groups.get(domainKey(d.group.getName()));
-                batch.queue(groupSettingsRequest, new GroupDescriptionsHandler(d.group, groupDescriptions));
-            }
-
-            batch.execute();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-
+    private void handleMetadataChanges(Lane lane, Collection<Differences.Difference> diffs, List<Differences.Difference> appliedDiffs) {
+        // For each metadata change, combine the group's current description
+        // (just in case the instructor has changed it) with the name change
+        // and update the whole shebang.  The current description came along
+        // with the group when we fetched it, so there's no need to look it up
+        // again here.
         try {
             Directory directory = google.getDirectory();
             Directory.Groups groups = directory.groups();
 
-            LimitedBatchRequest batch = new LimitedBatchRequest(directory);
+            LimitedBatchRequest batch = new LimitedBatchRequest(directory, lane, QuotaClass.DIRECTORY_WRITE);
 
             for (Differences.Difference d : diffs) {
                 if (!(d instanceof Differences.MetadataChange)) {
                     continue;
                 }
 
-                logger.info("Applying group metadata change: {}", d);
-
                 com.google.api.services.directory.model.Group googleGroup =
                         new com.google.api.services.directory.model.Group();
                 googleGroup.setName(d.group.getDescription());
 
-                if (defaultGroupDescription.equals(groupDescriptions.get(d.group))) {
+                String currentDescription = ((Differences.MetadataChange) d).currentDescription;
+
+                if (defaultGroupDescription.equals(currentDescription)) {
                     // Don't keep the default if we have something better
                     googleGroup.setDescription(d.group.getDescription());
                 } else {
                     // Keep what's there
-                    googleGroup.setDescription(groupDescriptions.get(d.group));
+                    googleGroup.setDescription(currentDescription);
                 }
 
                 Directory.Groups.Patch updateRequest = groups.patch(domainKey(d.group),
@@ -531,13 +667,17 @@ public class GoogleGroupTarget implements GroupTarget {
         private LinkedList<AbstractGoogleJsonClientRequest<?>> requests = new LinkedList<>();
         private LinkedList<JsonBatchCallback<?>> callbacks = new LinkedList<>();
         private AbstractGoogleClient client;
+        private Lane lane;
+        private QuotaClass quotaClass;
 
 
-        public LimitedBatchRequest(AbstractGoogleClient client) throws Exception {
+        public LimitedBatchRequest(AbstractGoogleClient client, Lane lane, QuotaClass quotaClass) throws Exception {
             requests = new LinkedList<AbstractGoogleJsonClientRequest<?>>();
             callbacks = new LinkedList<>();
 
             this.client = client;
+            this.lane = lane;
+            this.quotaClass = quotaClass;
         }
 
         public void queue(AbstractGoogleJsonClientRequest<?> request, JsonBatchCallback<?> callback) {
@@ -545,6 +685,13 @@ public class GoogleGroupTarget implements GroupTarget {
             callbacks.add(callback);
         }
 
+        // Queue a request to go out in the next batch.  Safe to call from the
+        // callback of a request in this batch.
+        public void queueFirst(AbstractGoogleJsonClientRequest<?> request, JsonBatchCallback<?> callback) {
+            requests.addFirst(request);
+            callbacks.addFirst(callback);
+        }
+
         public void execute() throws Exception {
             if (requests.isEmpty()) {
                 return;
@@ -577,46 +724,40 @@ public class GoogleGroupTarget implements GroupTarget {
             }
 
             if (batch.size() > 0) {
-                GoogleGroupTarget.this.rateLimiter.wantQueries(batch.size());
-
-                long start = System.currentTimeMillis();
-                logger.info("Executing batch of size: {}", batch.size());
-                batch.execute();
-                logger.info("Batch finished in {} ms", System.currentTimeMillis() - start);
+                try (Span span = Tracer.span("google_batch")
+                         .attr("lane", lane.configName())
+                         .attr("quota_class", quotaClass.configName())
+                         .attr("batch_size", batch.size())) {
+                    GoogleBatchEvent event = new GoogleBatchEvent();
+                    event.target = id;
+                    event.lane = lane.configName();
+                    event.quotaClass = quotaClass.configName();
+                    event.batchSize = batch.size();
+                    event.begin();
+
+                    long waitStart = System.currentTimeMillis();
+                    GoogleGroupTarget.this.rateLimiter.wantQueries(lane, quotaClass, batch.size());
+                    span.attr("ratelimit_wait_ms", System.currentTimeMillis() - waitStart);
+
+                    long start = System.currentTimeMillis();
+                    logger.info("Executing batch of size: {}", batch.size());
+                    batch.execute();
+
+                    long elapsed = System.currentTimeMillis() - start;
+                    logger.info("Batch finished in {} ms", elapsed);
+
+                    String[] labels = new String[] { "target", id, "lane", lane.configName(), "quota_class", quotaClass.configName() };
+                    Metrics.histogram("groupsync_google_batch_size", "Requests per Google batch", labels).record(batch.size());
+                    Metrics.histogram("groupsync_google_batch_ms", "Time taken to execute a Google batch", labels).record(elapsed);
+
+                    event.commit();
+                }
             }
 
             return !requests.isEmpty();
         }
     }
 
-    private class GroupDescriptionsHandler extends JsonBatchCallback<com.google.api.services.groupssettings.model.Groups> {
-        private Group group;
-        private Map<Group, String> groupDescriptions;
-
-        public GroupDescriptionsHandler(Group group, Map<Group, String> groupDescriptions) {
-            this.group = group;
-            this.groupDescriptions = groupDescriptions;
-        }
-
-        public void onSuccess(com.google.api.services.groupssettings.model.Groups groupSettings, HttpHeaders responseHeaders) {
-            groupDescriptions.put(group, groupSettings.getDescription());
-        }
-
-        public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
-            if (e.getCode() == 403) {
-                GoogleGroupTarget.this.rateLimiter.rateLimitHit();
-            }
-
-            if (e.getCode() == 404) {
-                // One of the groups couldn't be found on the
-                // Google side, which is normal for groups that
-                // haven't ever been synced.
-            } else {
-                throw new RuntimeException("Failed during Google lookup for group settings: " + group.getName() + " " + e);
-            }
-        }
-    }
-
     private class GroupHandler extends JsonBatchCallback<com.google.api.services.directory.model.Group> {
         private String groupName;
         private List<Group> groups;
@@ -654,12 +795,14 @@ public class GoogleGroupTarget implements GroupTarget {
     private class MemberListHandler extends JsonBatchCallback<Members> {
         private Map<String, String> roleMapping;
 
+        private Directory.Members members;
         private Group group;
-        private Map<Group, String> groupsToFetch;
+        private LimitedBatchRequest batch;
 
-        public MemberListHandler(Group group, Map<Group, String> groupsToFetch) {
+        public MemberListHandler(Directory.Members members, Group group, LimitedBatchRequest batch) {
+            this.members = members;
             this.group = group;
-            this.groupsToFetch = groupsToFetch;
+            this.batch = batch;
 
             roleMapping = new HashMap<>();
 
@@ -669,10 +812,9 @@ public class GoogleGroupTarget implements GroupTarget {
             roleMapping.put("OWNER", "MANAGER");
         }
 
-        public void onSuccess(Members members, HttpHeaders responseHeaders) {
+        public void onSuccess(Members members, HttpHeaders responseHeaders) throws IOException {
             if (members.getMembers() == null) {
                 // No members...
-                groupsToFetch.remove(group);
                 return;
             }
 
@@ -686,17 +828,13 @@ public class GoogleGroupTarget implements GroupTarget {
                 group.addMembership(m.getEmail(), role);
             }
 
-            if (members.getNextPageToken() == null) {
-                // No more pages
-                groupsToFetch.remove(group);
-            } else {
-                groupsToFetch.put(group, members.getNextPageToken());
+            if (members.getNextPageToken() != null) {
+                // More pages to come.  Get the next one into the very next batch.
+                batch.queueFirst(memberListRequest(this.members, group, members.getNextPageToken()), this);
             }
         }
 
         public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
-            groupsToFetch.remove(group);
-
             if (e.getCode() == 403) {
                 GoogleGroupTarget.this.rateLimiter.rateLimitHit();
             }
@@ -721,8 +859,8 @@ public class GoogleGroupTarget implements GroupTarget {
             this.failureHandler = failureHandler;
         }
 
-        public void onSuccess(com.google.api.services.directory.model.Group group, HttpHeaders responseHeaders) {
-            logger.info("Successfully created group '{}'", group.getName());
+        public void onSuccess(com.google.api.services.directory.model.Group googleGroup, HttpHeaders responseHeaders) {
+            AuditLog.groupCreated(id, group.getName());
         }
 
         public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
@@ -730,7 +868,7 @@ public class GoogleGroupTarget implements GroupTarget {
                 GoogleGroupTarget.this.rateLimiter.rateLimitHit();
             }
 
-            logger.info("Failed while creating group '{}': {}", group.getName(), e.getMessage());
+            AuditLog.groupCreateFailed(id, group.getName(), e.getMessage());
             if (this.failureHandler == null) {
                 throw new RuntimeException("Failed during creation for group: " + group.getName() + " " + e);
             } else {
@@ -771,6 +909,7 @@ public class GoogleGroupTarget implements GroupTarget {
 
         public void onSuccess(com.google.api.services.directory.model.Group group, HttpHeaders responseHeaders) {
             appliedDiffs.add(diff);
+            AuditLog.diff(id, diff, "applied");
         }
 
         public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
@@ -778,7 +917,7 @@ public class GoogleGroupTarget implements GroupTarget {
                 GoogleGroupTarget.this.rateLimiter.rateLimitHit();
             }
 
-            logger.info("Failed to apply diff: {}", diff);
+            AuditLog.diffFailed(id, diff, e.getMessage());
             logger.info("Error from Google was: {}", e);
         }
     }
@@ -786,14 +925,18 @@ public class GoogleGroupTarget implements GroupTarget {
     private class MemberDiffAppliedHandler extends JsonBatchCallback<Member> {
         private Differences.Difference diff;
         private List<Differences.Difference> appliedDiffs;
+        private List<Differences.MemberAdd> unknownMemberAdds;
 
-        public MemberDiffAppliedHandler(Differences.Difference diff, List<Differences.Difference> appliedDiffs) {
+        public MemberDiffAppliedHandler(Differences.Difference diff, List<Differences.Difference> appliedDiffs,
+                                        List<Differences.MemberAdd> unknownMemberAdds) {
             this.appliedDiffs = appliedDiffs;
+            this.unknownMemberAdds = unknownMemberAdds;
             this.diff = diff;
         }
 
         public void onSuccess(Member member, HttpHeaders responseHeaders) {
             appliedDiffs.add(diff);
+            AuditLog.diff(id, diff, "applied");
         }
 
         public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
@@ -808,8 +951,7 @@ public class GoogleGroupTarget implements GroupTarget {
 
                 // We already had this user.  Google's member listing often lags reality, so we'll treat this as a non-error.
                 appliedDiffs.add(diff);
-
-                logger.info("Caught 'duplicate user' error from Google.  No need to add this user: {}", e);
+                AuditLog.diff(id, diff, "duplicate");
 
                 return;
             }
@@ -823,13 +965,13 @@ public class GoogleGroupTarget implements GroupTarget {
                 // address that is no longer active.  Skip this error too since we don't control
                 // it.
                 appliedDiffs.add(diff);
-
-                logger.info("Caught 'notFound' error from Google.  This user address seems to be missing: {} {}", diff, e);
+                unknownMemberAdds.add((Differences.MemberAdd) diff);
+                AuditLog.diff(id, diff, "user_not_found");
 
                 return;
             }
 
-            logger.info("Failed to apply diff: {}", diff);
+            AuditLog.diffFailed(id, diff, e.getMessage());
             logger.info("Error from Google was: {}", e);
         }
     }
@@ -24,7 +24,7 @@ public class GroupSetDiffer {
 
             if (!authoritiveGroup.getDescription().equals(targetGroup.getDescription())) {
                 // The description needs updating
-                result.add(new Differences.MetadataChange(authoritiveGroup));
+                result.add(new Differences.MetadataChange(authoritiveGroup, targetGroup.getDescription()));
             }
         }
 
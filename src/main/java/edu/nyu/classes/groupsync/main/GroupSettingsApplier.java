@@ -0,0 +1,157 @@
+package edu.nyu.classes.groupsync.main;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.groupssettings.Groupssettings;
+import com.google.api.services.groupssettings.model.Groups;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.nyu.classes.groupsync.main.metrics.Metrics;
+
+// Apply group settings using direct (non-batch) requests, a few at a time.
+//
+// Batching settings patches caused Google to apply our settings
+// inconsistently (see GoogleGroupTarget.createNewGroups), so we don't trust
+// a successful response either: each group's settings are read back after
+// patching and the patch is retried if they didn't stick.
+class GroupSettingsApplier {
+    private static Logger logger = LoggerFactory.getLogger(GroupSettingsApplier.class);
+
+    private String targetId;
+    private GoogleClient google;
+    private RateLimiter rateLimiter;
+    private Lane lane;
+    private int concurrency;
+    private int maxAttempts;
+
+    public GroupSettingsApplier(String targetId, GoogleClient google, RateLimiter rateLimiter, Lane lane, int concurrency, int maxAttempts) {
+        this.targetId = targetId;
+        this.google = google;
+        this.rateLimiter = rateLimiter;
+        this.lane = lane;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    // Apply `settings` to each of the groups in `groupKeys`.  `onConfigured`
+    // is called (from a worker thread) as each group's settings are
+    // verified.  Returns the groups whose settings were applied and verified.
+    public Set<String> apply(Collection<String> groupKeys, Groups settings, Consumer<String> onConfigured) throws Exception {
+        Set<String> result = Collections.synchronizedSet(new HashSet<>());
+
+        if (groupKeys.isEmpty()) {
+            return result;
+        }
+
+        Groupssettings.Groups groups = google.getGroupSettings().groups();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(concurrency, groupKeys.size()));
+
+        try {
+            List<Future<?>> tasks = new ArrayList<>(groupKeys.size());
+
+            for (String groupKey : groupKeys) {
+                tasks.add(pool.submit(() -> {
+                    if (applyAndVerify(groups, groupKey, settings)) {
+                        onConfigured.accept(groupKey);
+                        result.add(groupKey);
+                    }
+                }));
+            }
+
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    // The group won't appear in our result.
+                    logger.error("Failed while recording configured group: {}", e.getCause().getMessage(), e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return result;
+    }
+
+    private boolean applyAndVerify(Groupssettings.Groups groups, String groupKey, Groups settings) {
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (attempt > 1) {
+                try {
+                    Thread.sleep((long)Math.floor(1000 * attempt + (1000 * Math.random())));
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+
+            try {
+                rateLimiter.wantQueries(lane, QuotaClass.SETTINGS_WRITE, 1);
+                long startTime = System.currentTimeMillis();
+                groups.patch(groupKey, settings).execute();
+                recordRequestTime("patch", startTime);
+
+                rateLimiter.wantQueries(lane, QuotaClass.SETTINGS_READ, 1);
+                startTime = System.currentTimeMillis();
+                Groups actual = groups.get(groupKey).execute();
+                recordRequestTime("get", startTime);
+
+                List<String> mismatches = mismatchedSettings(settings, actual);
+
+                if (mismatches.isEmpty()) {
+                    logger.info("Successfully configured group '{}'", groupKey);
+                    return true;
+                }
+
+                logger.warn("Settings for group '{}' didn't stick on attempt {}: {}", groupKey, attempt, mismatches);
+            } catch (GoogleJsonResponseException e) {
+                if (e.getStatusCode() == 403) {
+                    rateLimiter.rateLimitHit();
+                }
+
+                logger.warn("Failed while configuring group '{}' on attempt {}: {}", groupKey, attempt, e.getMessage());
+            } catch (Exception e) {
+                logger.warn("Failed while configuring group '{}' on attempt {}: {}", groupKey, attempt, e.getMessage());
+            }
+        }
+
+        logger.error("Giving up on configuring group '{}' after {} attempts", groupKey, maxAttempts);
+
+        return false;
+    }
+
+    // PassPlanner uses these to estimate how long new groups will take
+    private void recordRequestTime(String request, long startTime) {
+        Metrics.histogram("groupsync_google_settings_request_ms", "Time taken by a Groups Settings request",
+                          "target", targetId, "request", request)
+            .record(System.currentTimeMillis() - startTime);
+    }
+
+    private List<String> mismatchedSettings(Groups expected, Groups actual) {
+        List<String> result = new ArrayList<>();
+
+        for (Map.Entry<String, Object> setting : expected.entrySet()) {
+            if (!Objects.equals(setting.getValue(), actual.get(setting.getKey()))) {
+                result.add(String.format("%s (wanted '%s' but got '%s')",
+                                         setting.getKey(),
+                                         setting.getValue(),
+                                         actual.get(setting.getKey())));
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,39 @@
+package edu.nyu.classes.groupsync.main;
+
+import java.util.Locale;
+
+// Why we're making a Google request.  When callers are queued up for an
+// account's rate limit, the RequestScheduler shares the limit out between
+// lanes according to their weights, so a big job in one lane can't starve
+// the others.
+enum Lane {
+    // Changes to a handful of groups, which someone is probably waiting on
+    INTERACTIVE(8),
+
+    // Large changes to existing groups (e.g. term start)
+    BULK(2),
+
+    // Creating and configuring new groups
+    CREATION(2),
+
+    // Putting back changes made outside of groupsync (see DriftReconciler)
+    REPAIR(2),
+
+    // Checking groups for drift
+    RECONCILIATION(1);
+
+    private long defaultWeight;
+
+    Lane(long defaultWeight) {
+        this.defaultWeight = defaultWeight;
+    }
+
+    public long defaultWeight() {
+        return defaultWeight;
+    }
+
+    // The name used for this lane in config.properties
+    public String configName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
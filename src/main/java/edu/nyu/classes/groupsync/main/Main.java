@@ -1,5 +1,6 @@
 package edu.nyu.classes.groupsync.main;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -14,6 +15,9 @@ import com.zaxxer.hikari.HikariDataSource;
 import edu.nyu.classes.groupsync.api.GroupSource;
 import edu.nyu.classes.groupsync.api.GroupTarget;
 import edu.nyu.classes.groupsync.main.brightspace.BrightspaceClient;
+import edu.nyu.classes.groupsync.main.db.QueryProfiler;
+import edu.nyu.classes.groupsync.main.metrics.MetricsServer;
+import edu.nyu.classes.groupsync.main.tracing.Tracer;
 
 public class Main {
     // private static Logger logger = LoggerFactory.getLogger(Main.class);
@@ -24,10 +28,14 @@ public class Main {
         try {
             config = new Config(args[0]);
         } catch (Exception e) {
-            System.err.println("Usage: Main config/config.properties");
+            System.err.println("Usage: Main config/config.properties [--plan]");
             System.exit(1);
         }
 
+        // With --plan, print what the next pass of each replication set
+        // would involve (without touching Google) and exit.
+        boolean planOnly = args.length > 1 && "--plan".equals(args[1]);
+
         // Our Oracle queries should generally be short.  Don't hang on a failed
         // Oracle connection indefinitely...
         long timeout = 600000;
@@ -42,6 +50,7 @@ public class Main {
 
         Map<String, RateLimiter> rateLimiters = new HashMap<>();
         List<Replicator> replicators = new ArrayList<>();
+        List<DriftReconciler> reconcilers = new ArrayList<>();
 
         try {
             for (String set : config.replicationSets()) {
@@ -78,8 +87,29 @@ public class Main {
                 }
 
 
+                if (planOnly) {
+                    if ("google".equals(targetConfig.getString("type"))) {
+                        PassPlanner planner = new PassPlanner(new ReplicationState(replication_ds), targetConfig, config);
+
+                        // We haven't made any requests, but a running daemon might have
+                        String metricsUrl = daemonMetricsUrl(config);
+                        if (metricsUrl != null) {
+                            try {
+                                planner.useRequestTimesFrom(metricsUrl);
+                            } catch (Exception e) {
+                                System.err.println("Couldn't read request times from " + metricsUrl + ": " + e);
+                            }
+                        }
+
+                        System.out.println(planner.plan(source));
+                    }
+
+                    continue;
+                }
+
                 // And the target
                 GroupTarget target = null;
+                GroupTarget reconcileTarget = null;
                 if ("google".equals(targetConfig.getString("type"))) {
                     // Rate limits are applied at the user-level, so we should coordinate them.
                     String targetAccountKey = Optional.ofNullable(targetConfig.getString("oauth_user", null))
@@ -87,36 +117,132 @@ public class Main {
 
                     RateLimiter rateLimiter = rateLimiters.get(targetAccountKey);
                     if (rateLimiter == null) {
-                        rateLimiter = new RateLimiter(Long.valueOf(targetConfig.getString("queries_per_timestep")),
+                        rateLimiter = new RateLimiter(targetAccountKey,
+                                                      Long.valueOf(targetConfig.getString("queries_per_timestep")),
                                                       Long.valueOf(targetConfig.getString("ratelimit_timestep_ms")));
 
+                        if ("true".equals(targetConfig.getString("shared_ratelimit", "false"))) {
+                            // Other groupsync processes are using this account too
+                            rateLimiter.coordinateWith(new SharedQuota(replication_ds,
+                                                                       targetAccountKey,
+                                                                       Long.valueOf(targetConfig.getString("queries_per_timestep")),
+                                                                       Long.valueOf(targetConfig.getString("ratelimit_timestep_ms")),
+                                                                       targetConfig.getLong("shared_ratelimit_lease_size", 100),
+                                                                       targetConfig.getLong("shared_ratelimit_lease_ms", 5000)));
+                        }
+
+                        for (QuotaClass quotaClass : QuotaClass.values()) {
+                            long classQueries = targetConfig.getLong("quota." + quotaClass.configName() + ".queries_per_timestep", 0);
+
+                            if (classQueries > 0) {
+                                rateLimiter.limitQuotaClass(quotaClass,
+                                                            classQueries,
+                                                            targetConfig.getLong("quota." + quotaClass.configName() + ".timestep_ms",
+                                                                                 Long.valueOf(targetConfig.getString("ratelimit_timestep_ms"))));
+                            }
+                        }
+
+                        for (Lane lane : Lane.values()) {
+                            rateLimiter.setLaneWeight(lane, targetConfig.getLong("lane." + lane.configName() + ".weight", lane.defaultWeight()));
+                        }
+
                         rateLimiters.put(targetAccountKey, rateLimiter);
                     }
 
-                    target = new GoogleGroupTarget(targetConfig.getString("id"),
-                            Integer.valueOf(targetConfig.getString("batchSize", "50")),
+                    int batchSize = Integer.valueOf(targetConfig.getString("batchSize", "50"));
+
+                    GoogleGroupTarget googleTarget = new GoogleGroupTarget(targetConfig.getString("id"),
+                            batchSize,
                             targetConfig.getString("groupDescription", "auto-created group"),
                             rateLimiter,
                             new GoogleClient(targetConfig.getString("domain"),
                                     targetConfig.getString("oauth_user"),
                                     targetConfig.getString("oauth_secret"),
-                                    targetConfig.getString("credentials_path")));
+                                    targetConfig.getString("credentials_path")),
+                            (int) targetConfig.getLong("settings_concurrency", 4),
+                            (int) targetConfig.getLong("settings_attempts", 3),
+                            (int) targetConfig.getLong("interactive_limit", 10));
+
+                    target = googleTarget;
+
+                    if (config.getLong(set + ".reconcile_frequency_ms", 0) > 0) {
+                        // The drift reconciler only gets a slice of the rate limit
+                        long reconcileQueries = Long.valueOf(targetConfig.getString("queries_per_timestep")) *
+                            config.getLong(set + ".reconcile_rate_percent", 10) / 100;
+
+                        reconcileTarget = googleTarget.forReconciliation(rateLimiter.share(targetConfig.getString("id") + "_reconcile", Math.max(batchSize, reconcileQueries)));
+                    }
                 } else {
                     throw new RuntimeException("Unknown target type: " + targetConfig.getString("type"));
                 }
 
                 ReplicationState replicationState = new ReplicationState(replication_ds);
 
-                replicators.add(new Replicator(Long.valueOf(config.getString(set + ".frequency_ms")), source, target, replicationState, config));
+                Replicator replicator = new Replicator(Long.valueOf(config.getString(set + ".frequency_ms")), source, target, replicationState, config);
+                replicator.processInChunksOf((int) config.getLong(set + ".chunk_size", 1000));
+                replicators.add(replicator);
+
+                if ("true".equals(config.getString(set + ".estimate_passes", "false"))) {
+                    replicator.estimatePasses(new PassPlanner(replicationState, targetConfig, config));
+                }
+
+                if (reconcileTarget != null) {
+                    reconcilers.add(new DriftReconciler(replicator,
+                            reconcileTarget,
+                            replicationState,
+                            config.getLong(set + ".reconcile_frequency_ms", 0),
+                            (int) config.getLong(set + ".reconcile_page_size", 25),
+                            (int) config.getLong(set + ".reconcile_batch_size", 10)));
+                }
             }
         } catch (Exception e) {
             throw new RuntimeException("Errors while setting up replicators", e);
         }
 
+        if (planOnly) {
+            // Our connection pools would keep us running otherwise
+            System.exit(0);
+        }
+
+        Monitoring.configure(config.getLong("health.max_lag_ms", 3600000),
+                             config.getLong("health.max_consecutive_failures", 3));
+
+        AuditLog.configure(Double.valueOf(config.getString("audit.sample_rate", "1.0")));
+
+        Tracer.configure((int) config.getLong("tracing.keep_traces", 20),
+                         config.getString("tracing.export_dir", null));
+
+        QueryProfiler.configure(!"false".equals(config.getString("db_profiler.enabled", "true")),
+                                config.getLong("db_profiler.slow_query_ms", -1));
+
+        int profilerTopN = (int) config.getLong("db_profiler.top_n", 10);
+        long profilerReportMs = config.getLong("db_profiler.report_interval_ms", 0);
+        if (profilerReportMs > 0) {
+            QueryProfiler.scheduleReport(profilerReportMs, profilerTopN);
+        }
+
+        int metricsPort = (int) config.getLong("metrics.port", 0);
+        if (metricsPort > 0) {
+            try {
+                MetricsServer metricsServer = new MetricsServer(config.getString("metrics.bind_address", "127.0.0.1"), metricsPort);
+                metricsServer.route("/traces", "application/json", Tracer::recentTracesJSON);
+                metricsServer.route("/queries", "text/plain; charset=utf-8", () -> QueryProfiler.report(profilerTopN));
+                metricsServer.routePage("/health", "application/json", () -> page(Monitoring.health()));
+                metricsServer.routePage("/ready", "application/json", () -> page(Monitoring.readiness()));
+                metricsServer.start();
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't start metrics server", e);
+            }
+        }
+
         for (Replicator r : replicators) {
             r.start();
         }
 
+        for (DriftReconciler r : reconcilers) {
+            r.start();
+        }
+
         for (Replicator r : replicators) {
             try {
                 r.join();
@@ -124,4 +250,32 @@ public class Main {
             }
         }
     }
+
+    // 503 tells a load balancer or monitoring check that something's wrong
+    private static MetricsServer.Page page(Monitoring.Report report) {
+        return new MetricsServer.Page(report.ok ? 200 : 503, report.json);
+    }
+
+    // Where a daemon running with this config serves its metrics, if it does
+    private static String daemonMetricsUrl(Config config) {
+        String url = config.getString("plan.metrics_url", null);
+
+        if (url != null) {
+            return url;
+        }
+
+        long port = config.getLong("metrics.port", 0);
+
+        if (port <= 0) {
+            return null;
+        }
+
+        String host = config.getString("metrics.bind_address", "127.0.0.1");
+
+        if ("0.0.0.0".equals(host)) {
+            host = "127.0.0.1";
+        }
+
+        return "http://" + host + ":" + port + "/metrics.json";
+    }
 }
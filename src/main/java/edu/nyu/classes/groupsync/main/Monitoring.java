@@ -2,9 +2,126 @@ package edu.nyu.classes.groupsync.main;
 
 import java.io.IOException;
 import java.io.FileWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 
 class Monitoring {
 
+    // Replicators and rate limiters register themselves here, and `health`
+    // reports on all of them.
+    private static List<Replicator> replicators = new CopyOnWriteArrayList<>();
+    private static List<RateLimiter> rateLimiters = new CopyOnWriteArrayList<>();
+
+    // A replicator is unhealthy once its source watermark is more than
+    // `maxLagMs` old, or its last `maxConsecutiveFailures` passes all threw.
+    private static volatile long maxLagMs = 3600000;
+    private static volatile long maxConsecutiveFailures = 3;
+
+    public static class Report {
+        public final boolean ok;
+        public final String json;
+
+        public Report(boolean ok, String json) {
+            this.ok = ok;
+            this.json = json;
+        }
+    }
+
+    public static void configure(long maxLagMs, long maxConsecutiveFailures) {
+        Monitoring.maxLagMs = maxLagMs;
+        Monitoring.maxConsecutiveFailures = maxConsecutiveFailures;
+    }
+
+    public static void register(Replicator replicator) {
+        replicators.add(replicator);
+    }
+
+    public static void register(RateLimiter rateLimiter) {
+        rateLimiters.add(rateLimiter);
+    }
+
+    // Whether each replicator is keeping up with its source, and how busy our
+    // rate limiters are.
+    @SuppressWarnings("unchecked")
+    public static Report health() {
+        long now = System.currentTimeMillis();
+        boolean ok = true;
+
+        JSONArray replicatorStatus = new JSONArray();
+        for (Replicator replicator : replicators) {
+            long lagMs = replicator.lagMs(now);
+            long failures = replicator.consecutiveFailures();
+
+            JSONObject entry = new JSONObject();
+            entry.put("source", replicator.sourceId());
+            entry.put("target", replicator.targetId());
+            entry.put("last_successful_pass", replicator.lastSuccessfulPassTime());
+            entry.put("source_watermark", replicator.sourceWatermark());
+            entry.put("lag_ms", lagMs);
+            entry.put("consecutive_failures", failures);
+            entry.put("penalised_groups", replicator.penalisedGroupCount());
+            entry.put("last_error", replicator.lastError());
+
+            boolean replicatorOk = true;
+            if (maxLagMs > 0 && lagMs > maxLagMs) {
+                entry.put("problem", "lagging");
+                replicatorOk = false;
+            } else if (maxConsecutiveFailures > 0 && failures >= maxConsecutiveFailures) {
+                entry.put("problem", "failing");
+                replicatorOk = false;
+            }
+
+            entry.put("ok", replicatorOk);
+            ok = ok && replicatorOk;
+
+            replicatorStatus.add(entry);
+        }
+
+        JSONArray limiterStatus = new JSONArray();
+        for (RateLimiter limiter : rateLimiters) {
+            JSONObject entry = new JSONObject();
+            entry.put("name", limiter.getName());
+            entry.put("available_queries", limiter.availableQueries());
+            entry.put("queries_per_timestep", limiter.queriesPerTimestep());
+            entry.put("saturation", limiter.saturation());
+            entry.put("queued_callers", limiter.queuedCallers());
+
+            limiterStatus.add(entry);
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("status", ok ? "ok" : "unhealthy");
+        result.put("time", now);
+        result.put("replicators", replicatorStatus);
+        result.put("rate_limiters", limiterStatus);
+
+        return new Report(ok, result.toJSONString());
+    }
+
+    // Ready once every replicator has finished a pass, which means it can
+    // reach its source, its target and the replication state database.
+    @SuppressWarnings("unchecked")
+    public static Report readiness() {
+        boolean ready = true;
+        JSONArray waitingFor = new JSONArray();
+
+        for (Replicator replicator : replicators) {
+            if (replicator.lastSuccessfulPassTime() == 0) {
+                ready = false;
+                waitingFor.add(replicator.getName());
+            }
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("status", ready ? "ready" : "starting");
+        result.put("waiting_for", waitingFor);
+
+        return new Report(ready, result.toJSONString());
+    }
+
     // Dump an exception to a file so we can monitor it through health checks/Nagios/whatever.
     public static synchronized void recordException(Throwable e) {
         FileWriter log = null;
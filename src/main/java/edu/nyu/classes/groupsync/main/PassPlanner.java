@@ -0,0 +1,337 @@
+package edu.nyu.classes.groupsync.main;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import edu.nyu.classes.groupsync.api.Differences;
+import edu.nyu.classes.groupsync.api.Group;
+import edu.nyu.classes.groupsync.api.GroupSet;
+import edu.nyu.classes.groupsync.api.GroupSource;
+import edu.nyu.classes.groupsync.main.db.DB;
+import edu.nyu.classes.groupsync.main.metrics.Histogram;
+import edu.nyu.classes.groupsync.main.metrics.Metrics;
+
+// Work out what a pass would cost in Google queries, and roughly how long
+// it would take, without talking to Google.
+//
+// We diff the source's groups against our local mirror of the target
+// (groupsync_target_state) instead of the real thing, so this is only as
+// good as the mirror.  Groups missing from the mirror are assumed to be new.
+// The mirror doesn't keep group descriptions, so metadata changes aren't
+// counted.
+class PassPlanner {
+    // The most Google will give us in one page of members (see
+    // GoogleGroupTarget)
+    private static final int MEMBERS_PAGE_SIZE = 200;
+
+    // How many groups' worth of the mirror we load at once
+    private static final int MIRROR_CHUNK_SIZE = 1000;
+
+    private ReplicationState state;
+    private String targetId;
+
+    private long queriesPerTimestep;
+    private long timestepMs;
+    private Map<QuotaClass, long[]> quotaClassLimits = new EnumMap<>(QuotaClass.class);
+    private int batchSize;
+    private int settingsConcurrency;
+
+    // Used until we've seen some real requests to go by
+    private long defaultBatchMs;
+    private long defaultSettingsMs;
+
+    // Request times seen by a running daemon (see `useRequestTimesFrom`), as
+    // {count, sum} by histogram name.  Null if we're not using one.
+    private Map<String, long[]> daemonRequestTimes = null;
+
+    public static class Plan {
+        public String sourceId;
+        public String targetId;
+
+        public long groups;
+        public long newGroups;
+
+        // Google queries, by what they're for
+        public long groupGets;
+        public long memberPages;
+        public long memberInserts;
+        public long memberDeletes;
+        public long roleChanges;
+        public long groupCreations;
+        public long settingsPatches;
+        public long settingsReads;
+
+        // How long the rate limits alone would hold us up, and how long we'd
+        // spend waiting on responses.  These overlap, so the estimate is the
+        // larger of the two.
+        public long rateLimitedMs;
+        public long latencyMs;
+
+        // The request times behind `latencyMs`, and whether they were
+        // observed or just our defaults
+        public long batchMs;
+        public boolean batchMsObserved;
+        public long settingsRequestMs;
+        public boolean settingsRequestMsObserved;
+
+        public long queries(QuotaClass quotaClass) {
+            switch (quotaClass) {
+            case DIRECTORY_READ:
+                return groupGets + memberPages;
+            case DIRECTORY_WRITE:
+                return memberInserts + memberDeletes + roleChanges + groupCreations;
+            case SETTINGS_READ:
+                return settingsReads;
+            case SETTINGS_WRITE:
+                return settingsPatches;
+            default:
+                return 0;
+            }
+        }
+
+        public long totalQueries() {
+            long result = 0;
+
+            for (QuotaClass quotaClass : QuotaClass.values()) {
+                result += queries(quotaClass);
+            }
+
+            return result;
+        }
+
+        public long estimatedMs() {
+            return Math.max(rateLimitedMs, latencyMs);
+        }
+
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+
+            out.append(String.format("Plan for %s -> %s%n", sourceId, targetId));
+            out.append(String.format("  groups to sync:      %d (%d new)%n", groups, newGroups));
+            out.append(String.format("  group gets:          %d%n", groupGets));
+            out.append(String.format("  member pages:        %d%n", memberPages));
+            out.append(String.format("  member inserts:      %d%n", memberInserts));
+            out.append(String.format("  member deletes:      %d%n", memberDeletes));
+            out.append(String.format("  role changes:        %d%n", roleChanges));
+            out.append(String.format("  group creations:     %d%n", groupCreations));
+            out.append(String.format("  settings patches:    %d%n", settingsPatches));
+            out.append(String.format("  settings reads:      %d%n", settingsReads));
+            out.append(String.format("  total queries:       %d%n", totalQueries()));
+            out.append(String.format("  rate limited time:   %s%n", formatMs(rateLimitedMs)));
+            out.append(String.format("  request time:        %s%n", formatMs(latencyMs)));
+            out.append(String.format("    per batch:         %d ms (%s)%n", batchMs,
+                                     batchMsObserved ? "observed" : "default plan.batch_ms"));
+            out.append(String.format("    per settings req:  %d ms (%s)%n", settingsRequestMs,
+                                     settingsRequestMsObserved ? "observed" : "default plan.settings_request_ms"));
+            out.append(String.format("  estimated pass time: %s%n", formatMs(estimatedMs())));
+
+            return out.toString();
+        }
+
+        private static String formatMs(long ms) {
+            long seconds = ms / 1000;
+
+            return String.format("%dh %02dm %02ds", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+        }
+    }
+
+    public PassPlanner(ReplicationState state, Config.Group targetConfig, Config config) {
+        this.state = state;
+        this.targetId = targetConfig.getString("id");
+
+        this.queriesPerTimestep = Long.valueOf(targetConfig.getString("queries_per_timestep"));
+        this.timestepMs = Long.valueOf(targetConfig.getString("ratelimit_timestep_ms"));
+
+        // Same settings as Main uses for the real rate limiter
+        for (QuotaClass quotaClass : QuotaClass.values()) {
+            long classQueries = targetConfig.getLong("quota." + quotaClass.configName() + ".queries_per_timestep", 0);
+
+            if (classQueries > 0) {
+                quotaClassLimits.put(quotaClass, new long[] {
+                        classQueries,
+                        targetConfig.getLong("quota." + quotaClass.configName() + ".timestep_ms", timestepMs)
+                    });
+            }
+        }
+
+        this.batchSize = Integer.valueOf(targetConfig.getString("batchSize", "50"));
+        this.settingsConcurrency = (int) Math.max(1, targetConfig.getLong("settings_concurrency", 4));
+
+        this.defaultBatchMs = config.getLong("plan.batch_ms", 2000);
+        this.defaultSettingsMs = config.getLong("plan.settings_request_ms", 500);
+    }
+
+    // Plan the next pass from `source`: the groups updated since it was last
+    // fully synced, less the ones we've synced since they changed and the
+    // ones backing off after failures.
+    public Plan plan(GroupSource source) throws Exception {
+        long now = System.currentTimeMillis();
+        long since = Math.max(0, state.lastUpdateForSource(source.getId()) - Replicator.UPDATE_MARGIN_MS);
+        GroupSet updatedGroups = source.updatedGroupsSince(since, (groupName) -> {
+                try {
+                    return state.isEligible(source.getId(), groupName, now);
+                } catch (Exception e) {
+                    throw new RuntimeException("Failed to check failure backoff for group " + groupName, e);
+                }
+            });
+
+        List<Group> alreadySynced = new ArrayList<>();
+        for (Group g : updatedGroups) {
+            if (state.lastSyncTimeForGroup(source.getId(), g) > g.getLastModifiedTime()) {
+                alreadySynced.add(g);
+            }
+        }
+
+        updatedGroups.removeAll(alreadySynced);
+
+        return plan(source.getId(), updatedGroups);
+    }
+
+    public Plan plan(String sourceId, GroupSet updatedGroups) throws Exception {
+        Plan plan = new Plan();
+        plan.sourceId = sourceId;
+        plan.targetId = targetId;
+
+        // A chunk of the mirror at a time, like a real pass
+        List<String> groupNames = new ArrayList<>(updatedGroups.groupNames());
+
+        for (List<String> chunk : DB.partition(groupNames, MIRROR_CHUNK_SIZE)) {
+            GroupSet mirror = state.targetGroupMemberships(targetId, chunk);
+            GroupSet chunkGroups = new GroupSet();
+
+            for (String groupName : chunk) {
+                Group g = chunkGroups.createOrGetGroup(updatedGroups.get(groupName));
+
+                plan.groups++;
+                plan.groupGets++;
+
+                if (mirror.hasGroup(g.getName())) {
+                    long members = mirror.get(g.getName()).getMembers().size();
+                    plan.memberPages += Math.max(1, (members + MEMBERS_PAGE_SIZE - 1) / MEMBERS_PAGE_SIZE);
+                } else {
+                    plan.newGroups++;
+                    plan.groupCreations++;
+                    plan.settingsPatches++;
+                    plan.settingsReads++;
+                }
+
+                // New groups are diffed against an empty one, as in a real pass
+                mirror.createOrGetGroup(new Group(g.getName(), g.getDescription()));
+            }
+
+            for (Differences.Difference diff : new GroupSetDiffer().diff(mirror, chunkGroups)) {
+                if (diff instanceof Differences.MemberAdd) {
+                    plan.memberInserts++;
+                } else if (diff instanceof Differences.MemberDrop) {
+                    plan.memberDeletes++;
+                } else if (diff instanceof Differences.MemberRoleChange) {
+                    plan.roleChanges++;
+                }
+            }
+        }
+
+        plan.rateLimitedMs = rateLimitedMs(plan.totalQueries(), queriesPerTimestep, timestepMs);
+
+        for (Map.Entry<QuotaClass, long[]> limit : quotaClassLimits.entrySet()) {
+            plan.rateLimitedMs = Math.max(plan.rateLimitedMs,
+                                          rateLimitedMs(plan.queries(limit.getKey()), limit.getValue()[0], limit.getValue()[1]));
+        }
+
+        long batches = batches(plan.groupGets) + batches(plan.memberPages) +
+            batches(plan.memberInserts + plan.memberDeletes + plan.roleChanges) + batches(plan.groupCreations);
+        long settingsRounds = (plan.settingsPatches + plan.settingsReads + settingsConcurrency - 1) / settingsConcurrency;
+
+        long[] batchMs = observedMs("groupsync_google_batch_ms");
+        plan.batchMsObserved = (batchMs != null);
+        plan.batchMs = plan.batchMsObserved ? average(batchMs) : defaultBatchMs;
+
+        long[] settingsRequestMs = observedMs("groupsync_google_settings_request_ms");
+        plan.settingsRequestMsObserved = (settingsRequestMs != null);
+        plan.settingsRequestMs = plan.settingsRequestMsObserved ? average(settingsRequestMs) : defaultSettingsMs;
+
+        plan.latencyMs = (batches * plan.batchMs) + (settingsRounds * plan.settingsRequestMs);
+
+        return plan;
+    }
+
+    // The first timestep's worth of queries can go straight away.  Each
+    // timestep's worth after that waits another timestep.
+    private long rateLimitedMs(long queries, long queriesPerTimestep, long timestepMs) {
+        if (queries <= queriesPerTimestep) {
+            return 0;
+        }
+
+        return ((queries - 1) / queriesPerTimestep) * timestepMs;
+    }
+
+    private long batches(long requests) {
+        return (requests + batchSize - 1) / batchSize;
+    }
+
+    // Use the request times a running daemon has seen for our target, read
+    // from its /metrics.json at `metricsUrl`.  For planning from a fresh
+    // process, which hasn't made any requests of its own.
+    public void useRequestTimesFrom(String metricsUrl) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(metricsUrl).openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+
+        Map<String, long[]> result = new HashMap<>();
+
+        try (Reader in = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            JSONObject parsed = (JSONObject) new JSONParser().parse(in);
+
+            for (Object entry : (JSONArray) parsed.get("metrics")) {
+                JSONObject metric = (JSONObject) entry;
+                JSONObject labels = (JSONObject) metric.get("labels");
+
+                if (!"summary".equals(metric.get("type")) || labels == null || !targetId.equals(labels.get("target"))) {
+                    continue;
+                }
+
+                long[] totals = result.computeIfAbsent((String) metric.get("name"), (name) -> new long[2]);
+                totals[0] += ((Number) metric.get("count")).longValue();
+                totals[1] += ((Number) metric.get("sum")).longValue();
+            }
+        } finally {
+            connection.disconnect();
+        }
+
+        daemonRequestTimes = result;
+    }
+
+    // {count, sum} of what we (or the daemon) have seen for this target so
+    // far, or null if nothing yet
+    private long[] observedMs(String histogramName) {
+        long count = 0;
+        long sum = 0;
+
+        for (Histogram histogram : Metrics.findHistograms(histogramName, "target", targetId)) {
+            count += histogram.getCount();
+            sum += histogram.getSum();
+        }
+
+        if (count == 0 && daemonRequestTimes != null && daemonRequestTimes.containsKey(histogramName)) {
+            count = daemonRequestTimes.get(histogramName)[0];
+            sum = daemonRequestTimes.get(histogramName)[1];
+        }
+
+        return (count == 0) ? null : new long[] { count, sum };
+    }
+
+    private long average(long[] countAndSum) {
+        return countAndSum[1] / countAndSum[0];
+    }
+}
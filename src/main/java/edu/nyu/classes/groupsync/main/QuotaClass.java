@@ -0,0 +1,18 @@
+package edu.nyu.classes.groupsync.main;
+
+import java.util.Locale;
+
+// The kinds of Google API call we make.  Google budgets the Directory and
+// Groups Settings APIs separately, and reads separately from writes, so each
+// of these can be given its own limit (see RateLimiter.limitQuotaClass).
+enum QuotaClass {
+    DIRECTORY_READ,
+    DIRECTORY_WRITE,
+    SETTINGS_READ,
+    SETTINGS_WRITE;
+
+    // The name used for this class in config.properties
+    public String configName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,79 +1,336 @@
 package edu.nyu.classes.groupsync.main;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.nyu.classes.groupsync.main.metrics.Histogram;
+import edu.nyu.classes.groupsync.main.metrics.Metrics;
+import edu.nyu.classes.groupsync.main.jfr.RateLimitWaitEvent;
+
 class RateLimiter {
     private static Logger logger = LoggerFactory.getLogger(RateLimiter.class);
 
+    private String name;
     private long queriesPerTimestep;
     private long timestepMs;
 
-    public RateLimiter(long queriesPerTimestep, long timestepMs) {
+    // If set, queries must also be allowed by our parent (see `share`)
+    private RateLimiter parent;
+
+    // If set, queries must also fit within our share of a quota that other
+    // processes are using too
+    private SharedQuota sharedQuota;
+
+    // Separate budgets for particular kinds of query.  A query in one of these
+    // classes has to fit within its class's budget as well as ours.
+    private Map<QuotaClass, RateLimiter> quotaClassLimiters = new EnumMap<>(QuotaClass.class);
+
+    // Decides whose turn it is when callers are queued up for our budget.
+    // Only used by the top-level limiter, since that's where they queue.
+    private RequestScheduler scheduler = new RequestScheduler();
+
+    private Histogram waitTimes;
+
+    public RateLimiter(String name, long queriesPerTimestep, long timestepMs) {
+        this(name, queriesPerTimestep, timestepMs, null);
+
+        for (Lane lane : Lane.values()) {
+            Metrics.gauge("groupsync_ratelimit_queued_callers", "Callers waiting for their turn at the rate limiter",
+                          () -> scheduler.waitingIn(lane),
+                          "limiter", name, "lane", lane.configName());
+        }
+
+        Monitoring.register(this);
+    }
+
+    private RateLimiter(String name, long queriesPerTimestep, long timestepMs, RateLimiter parent) {
+        if (queriesPerTimestep <= 0 || queriesPerTimestep > Integer.MAX_VALUE) {
+            throw new RuntimeException("Bogus value for queries per timestep: " + queriesPerTimestep);
+        }
+
+        this.name = name;
         this.queriesPerTimestep = queriesPerTimestep;
         this.timestepMs = timestepMs;
+        this.parent = parent;
+
+        this.waitTimes = Metrics.histogram("groupsync_ratelimit_wait_ms", "Time spent waiting for the rate limiter to allow queries",
+                                           "limiter", name);
+        Metrics.gauge("groupsync_ratelimit_available_queries", "Queries the rate limiter would allow to start right now",
+                      this::availableQueries,
+                      "limiter", name);
+
+        this.timestepNanos = TimeUnit.MILLISECONDS.toNanos(timestepMs);
+        this.grantTimes = new long[(int) queriesPerTimestep];
+    }
+
+    // Coordinate with other groupsync processes using the same account
+    public void coordinateWith(SharedQuota sharedQuota) {
+        this.sharedQuota = sharedQuota;
+    }
+
+    // Give queries of `quotaClass` their own budget.  Only meant to be called
+    // while we're setting up.
+    public void limitQuotaClass(QuotaClass quotaClass, long queriesPerTimestep, long timestepMs) {
+        quotaClassLimiters.put(quotaClass, new RateLimiter(name + "." + quotaClass.configName(), queriesPerTimestep, timestepMs, null));
+    }
+
+    // Only meant to be called while we're setting up.
+    public void setLaneWeight(Lane lane, long weight) {
+        scheduler.setWeight(lane, weight);
+    }
+
+    // A limiter that allows at most `queriesPerTimestep` of this limiter's
+    // budget to be used through it.  Queries made through the share still
+    // count against (and wait for) this limiter too.
+    public RateLimiter share(String shareName, long queriesPerTimestep) {
+        return new RateLimiter(name + "." + shareName, Math.min(queriesPerTimestep, this.queriesPerTimestep), timestepMs, this);
     }
 
     // Google limits to 1500 queries per 100 seconds by default.  This
     // appears to include the subqueries of batch requests (i.e. a single
     // batch request doesn't just count as one query.)
-    private List<Long> times = new ArrayList<>();
-    private Map<Long, Long> queryCounts = new HashMap<>();
+    //
+    // So we number every query we allow, and query N can't start until a full
+    // timestep after query N - queriesPerTimestep started.
+    //
+    // Callers take turns at the top-level limiter's RequestScheduler, which
+    // picks the next turn by lane (weighted fair queueing).  A turn is
+    // exclusive: its holder works out when its queries may start, records
+    // that against the top-level limiter and any shares or quota classes the
+    // queries also count against, and then sleeps until then while still
+    // holding the turn.  Nobody behind it could start any sooner on the
+    // top-level budget anyway.  Waiting on a share's or class's budget
+    // happens before taking a turn (see `wantQueries`), so that never holds
+    // anyone else up.
+    private long timestepNanos;
+
+    // When each of the last `queriesPerTimestep` queries was allowed to start
+    // (System.nanoTime), indexed by query number modulo queriesPerTimestep.
+    private long[] grantTimes;
+
+    // Queries below this number have their start times in `grantTimes`.
+    // Written only by the caller whose turn it is.
+    private volatile long recordedQueries = 0;
+
+    private long lastGrantTime = Long.MIN_VALUE;
+
+    // Express an interest in running `count` queries of `quotaClass` on
+    // behalf of `lane`.  Block until that's OK.
+    //
+    // Class budgets belong to the account, so shares of this limiter use the
+    // same ones.
+    public void wantQueries(Lane lane, QuotaClass quotaClass, long count) {
+        RateLimitWaitEvent event = new RateLimitWaitEvent();
+        event.begin();
+
+        // Every budget these queries count against besides the top-level one
+        List<RateLimiter> limits = new ArrayList<>();
+        for (RateLimiter share = this; share.parent != null; share = share.parent) {
+            limits.add(share);
+        }
+
+        RateLimiter root = root();
+        RateLimiter classLimiter = root.quotaClassLimiters.get(quotaClass);
+
+        if (classLimiter != null) {
+            limits.add(classLimiter);
+        }
+
+        root.wantQueries(lane, limits, count);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.limiter = name;
+            event.lane = lane.configName();
+            event.quotaClass = quotaClass.configName();
+            event.queries = count;
+            event.commit();
+        }
+    }
+
+    // Everyone ends up queued here, so this is where the lanes take turns.
+    private void wantQueries(Lane lane, List<RateLimiter> limits, long count) {
+        if (limits.isEmpty()) {
+            scheduler.runInTurn(lane, count, () -> acquireOwn(count));
+            return;
+        }
+
+        for (RateLimiter limit : limits) {
+            if (count > limit.queriesPerTimestep) {
+                throw new RuntimeException("Can't execute that many concurrent queries: " + count);
+            }
+        }
+
+        while (true) {
+            // Wait for the other budgets before taking a turn, so an
+            // exhausted share or class doesn't hold up everyone else's
+            // queries.
+            for (RateLimiter limit : limits) {
+                limit.awaitGrant(limit.earliestGrantTime(count, System.nanoTime()), count);
+            }
+
+            boolean[] granted = new boolean[1];
+            scheduler.runInTurn(lane, count, () -> granted[0] = acquireInTurn(limits, count));
+
+            if (granted[0]) {
+                return;
+            }
+        }
+    }
+
+    // Our queries go out when our budget allows, and that's the start time
+    // we record against their shares and class too.  Recording those any
+    // earlier would let queries that were held up here bunch together in
+    // their windows.
+    //
+    // Shares and class limiters are only reserved from here, so with our turn
+    // we have them to ourselves too.  Returns false (having reserved nothing)
+    // if somebody used up one of their budgets while we waited for our turn.
+    private boolean acquireInTurn(List<RateLimiter> limits, long count) {
+        long now = System.nanoTime();
 
-    // Express an interest in running `count` queries.  Block until that's
-    // OK.
-    public synchronized void wantQueries(long count) {
+        for (RateLimiter limit : limits) {
+            if (limit.earliestGrantTime(count, now) > now) {
+                return false;
+            }
+        }
+
+        // The others are ready now, so only our own budget decides this
+        long grantTime = reserve(count, Long.MIN_VALUE);
+
+        for (RateLimiter limit : limits) {
+            limit.reserve(count, grantTime);
+        }
+
+        awaitGrant(grantTime, count);
+
+        if (sharedQuota != null) {
+            sharedQuota.wantQueries(count);
+        }
+
+        return true;
+    }
+
+    private void acquireOwn(long count) {
+        awaitGrant(reserve(count, Long.MIN_VALUE), count);
+
+        if (sharedQuota != null) {
+            sharedQuota.wantQueries(count);
+        }
+    }
+
+    private RateLimiter root() {
+        return (parent == null) ? this : parent.root();
+    }
+
+    // Record when the next `count` queries can start: no earlier than
+    // `notBefore` (System.nanoTime), and no earlier than our budget allows.
+    // Returns that time.  Only called by the caller whose turn it is.
+    private long reserve(long count, long notBefore) {
         if (count > queriesPerTimestep) {
             throw new RuntimeException("Can't execute that many concurrent queries: " + count);
         }
 
-        while ((queriesInLastTimestep() + count) > queriesPerTimestep) {
-            logger.warn("Waiting for rate limiter to allow another {} queries", count);
+        long firstQuery = recordedQueries;
+        long lastQuery = firstQuery + count - 1;
+
+        long grantTime = Math.max(Math.max(System.nanoTime(), lastGrantTime), notBefore);
+
+        if (lastQuery >= queriesPerTimestep) {
+            grantTime = Math.max(grantTime, grantTimes[slot(lastQuery - queriesPerTimestep)] + timestepNanos);
+        }
+
+        for (long query = firstQuery; query <= lastQuery; query++) {
+            grantTimes[slot(query)] = grantTime;
+        }
+
+        lastGrantTime = grantTime;
+        recordedQueries = lastQuery + 1;
+
+        return grantTime;
+    }
+
+    // When `reserve` would let another `count` queries start, if it were
+    // called at `now`.  Only exact while nobody else can reserve (see
+    // `acquireInTurn`); otherwise it's a guess.
+    private long earliestGrantTime(long count, long now) {
+        long lastQuery = recordedQueries + count - 1;
+        long grantTime = Math.max(now, lastGrantTime);
+
+        if (lastQuery >= queriesPerTimestep) {
+            grantTime = Math.max(grantTime, grantTimes[slot(lastQuery - queriesPerTimestep)] + timestepNanos);
+        }
+
+        return grantTime;
+    }
+
+    private void awaitGrant(long grantTime, long count) {
+        long waitNanos = grantTime - System.nanoTime();
+
+        waitTimes.record(TimeUnit.NANOSECONDS.toMillis(Math.max(waitNanos, 0)));
+
+        if (waitNanos > 0) {
+            logger.warn("Waiting {} ms for rate limiter to allow another {} queries",
+                        TimeUnit.NANOSECONDS.toMillis(waitNanos), count);
+        }
+
+        while (waitNanos > 0) {
             try {
-                Thread.sleep(1000);
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
             } catch (InterruptedException e) {}
+
+            waitNanos = grantTime - System.nanoTime();
         }
+    }
+
+    public String getName() {
+        return name;
+    }
 
-        // OK!
-        recordQueries(count);
+    public long queriesPerTimestep() {
+        return queriesPerTimestep;
     }
 
-    private void recordQueries(long count) {
-        long now = System.currentTimeMillis();
+    // How much of our budget for the current timestep is spoken for (0.0 to
+    // 1.0).
+    public double saturation() {
+        return 1.0 - ((double) availableQueries() / queriesPerTimestep);
+    }
+
+    public long queuedCallers() {
+        long result = 0;
 
-        if (times.contains(now)) {
-            queryCounts.put(now, queryCounts.get(now) + count);
-        } else {
-            times.add(now);
-            queryCounts.put(now, count);
+        for (Lane lane : Lane.values()) {
+            result += scheduler.waitingIn(lane);
         }
+
+        return result;
     }
 
+    // How many more queries we'd allow to start right now.  Only approximate,
+    // since we don't lock anything to work it out.
+    public long availableQueries() {
+        long now = System.nanoTime();
+        long recorded = recordedQueries;
+        long inWindow = 0;
 
-    private long queriesInLastTimestep() {
-        long result = 0;
-        long timestepStart = System.currentTimeMillis() - timestepMs;
-
-        Iterator<Long> it = times.iterator();
-        while (it.hasNext()) {
-            long time = it.next();
-
-            if (time < timestepStart) {
-                // Time expired.  No longer needed.
-                it.remove();
-                queryCounts.remove(time);
-            } else {
-                result += queryCounts.get(time);
+        for (long query = Math.max(0, recorded - queriesPerTimestep); query < recorded; query++) {
+            if (grantTimes[slot(query)] + timestepNanos > now) {
+                inWindow++;
             }
         }
 
-        return result;
+        return queriesPerTimestep - inWindow;
+    }
+
+    private int slot(long query) {
+        return (int) (query % queriesPerTimestep);
     }
 
     public void rateLimitHit() {
@@ -9,15 +9,24 @@ import edu.nyu.classes.groupsync.main.db.DB;
 import edu.nyu.classes.groupsync.main.db.DBAction;
 import edu.nyu.classes.groupsync.main.db.DBConnection;
 import edu.nyu.classes.groupsync.main.db.DBPreparedStatement;
+import edu.nyu.classes.groupsync.main.db.DBResults;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongUnaryOperator;
 
 
 public class ReplicationState implements TargetStore {
@@ -29,6 +38,12 @@ public class ReplicationState implements TargetStore {
         this.db = db;
     }
 
+    // Run `work` with a single connection to our database, shared by any
+    // of our methods that it calls.
+    public <E> E unitOfWork(Callable<E> work) throws Exception {
+        return DB.unitOfWork(db, work);
+    }
+
     public long lastUpdateForSource(String sourceId) throws Exception {
         return lastSyncTimeForGroup(sourceId, dummyGroupForSource(sourceId));
     }
@@ -42,45 +57,143 @@ public class ReplicationState implements TargetStore {
     }
 
 
+    // What we know about each group (by name) in each source, loaded with a
+    // single query the first time we're asked about a source.  Each source is
+    // synced by only one replicator, so the rows don't change underneath us
+    // and from then on we just keep the cache up to date as we write them.
+    private Map<String, SourceState> sourceStates = new ConcurrentHashMap<>();
+
+    private static class SourceState {
+        // Every group with a row, and when it was last synced (0 if never)
+        public final Map<String, Long> syncTimes = new ConcurrentHashMap<>();
+
+        // Groups that have failed since they last synced
+        public final Map<String, Backoff> backoffs = new ConcurrentHashMap<>();
+    }
+
+    private static class Backoff {
+        public final long failureCount;
+
+        // Don't try the group again before this time
+        public final long nextEligibleTime;
+
+        public Backoff(long failureCount, long nextEligibleTime) {
+            this.failureCount = failureCount;
+            this.nextEligibleTime = nextEligibleTime;
+        }
+    }
+
     public long lastSyncTimeForGroup(final String sourceId, Group group) throws Exception {
-        return DB.transaction(db, new DBAction<Long>() {
+        Long result = sourceState(sourceId).syncTimes.get(group.getName());
+
+        return (result == null) ? 0 : result;
+    }
+
+    // How many times in a row the group has failed to sync
+    public long failureCount(final String sourceId, Group group) throws Exception {
+        Backoff backoff = sourceState(sourceId).backoffs.get(group.getName());
+
+        return (backoff == null) ? 0 : backoff.failureCount;
+    }
+
+    // False if the group has failed recently enough that it's still backing
+    // off at `now`
+    public boolean isEligible(final String sourceId, String groupName, long now) throws Exception {
+        Backoff backoff = sourceState(sourceId).backoffs.get(groupName);
+
+        return (backoff == null) || backoff.nextEligibleTime <= now;
+    }
+
+    public long backingOffCount(final String sourceId, long now) throws Exception {
+        return sourceState(sourceId).backoffs.values().stream().filter(b -> b.nextEligibleTime > now).count();
+    }
+
+    private SourceState sourceState(final String sourceId) throws Exception {
+        SourceState result = sourceStates.get(sourceId);
+
+        if (result != null) {
+            return result;
+        }
+
+        result = DB.transaction(db, new DBAction<SourceState>() {
             @Override
-            public Long call(DBConnection c) throws SQLException {
-                DBPreparedStatement select = c.run("select last_sync_time from groupsync_source_state" +
-                        " where source_id = ? AND group_id = ?");
+            public SourceState call(DBConnection c) throws SQLException {
+                DBPreparedStatement select = c.run("select group_id, last_sync_time, failure_count, next_eligible_time" +
+                        " from groupsync_source_state where source_id = ?");
                 select.param(sourceId);
-                select.param(group.getName());
 
-                long result = 0;
+                SourceState state = new SourceState();
 
                 for (ResultSet rs : select.executeQuery()) {
-                    result = rs.getLong("last_sync_time");
+                    String groupName = rs.getString("group_id");
+
+                    state.syncTimes.put(groupName, rs.getLong("last_sync_time"));
+
+                    if (rs.getLong("failure_count") > 0) {
+                        state.backoffs.put(groupName, new Backoff(rs.getLong("failure_count"), rs.getLong("next_eligible_time")));
+                    }
                 }
 
-                return result;
+                return state;
             }
         });
+
+        logger.info("Loaded sync state for {} groups ({} failing) from source {}",
+                    result.syncTimes.size(), result.backoffs.size(), sourceId);
+
+        sourceStates.put(sourceId, result);
+
+        return result;
     }
 
 
+    // Bring our mirror of `groups` up to date with what we just fetched from
+    // the target.  Most memberships won't have changed since last time, so we
+    // compare against what we have and only write the differences.
     public void storeRemoteMemberships(final String targetId, final GroupSet groups) throws Exception {
+        final List<String> groupNames = new ArrayList<>();
+        for (Group g : groups) {
+            groupNames.add(g.getName());
+        }
+
+        if (groupNames.isEmpty()) {
+            return;
+        }
+
         DB.transaction(db, new DBAction<Void>() {
             @Override
             public Void call(DBConnection c) throws SQLException {
+                // group name -> user -> role
+                Map<String, Map<String, String>> storedRoles = new HashMap<>();
+
+                for (List<String> chunk : DB.partition(groupNames, DB.MAX_IN_CLAUSE_SIZE)) {
+                    DBPreparedStatement select = c.run("select group_id, user_id, role from groupsync_target_state" +
+                            " where target_id = ? AND group_id in (" + c.placeholders(chunk) + ")");
+                    select.param(targetId);
+                    select.stringParams(chunk);
+
+                    for (ResultSet rs : select.executeQuery()) {
+                        storedRoles.computeIfAbsent(rs.getString("group_id"), (groupName) -> new HashMap<>())
+                            .put(rs.getString("user_id"), rs.getString("role"));
+                    }
+                }
+
                 DBPreparedStatement delete = c.run("delete from groupsync_target_state" +
-                        " where target_id = ? AND group_id = ?");
+                        " where target_id = ? AND group_id = ? AND user_id = ?");
 
                 DBPreparedStatement insert = c.run("insert into groupsync_target_state" +
                         " (target_id, group_id, user_id, role) VALUES (?, ?, ?, ?)");
 
+                DBPreparedStatement change = c.run("update groupsync_target_state" +
+                        " set role = ? where target_id = ? AND group_id = ? AND user_id = ?");
+
+                int deletes = 0;
+                int inserts = 0;
+                int changes = 0;
+
                 try {
                     for (Group g : groups) {
-                        delete.clearParameters();
-                        delete.param(targetId);
-                        delete.param(g.getName());
-                        delete.addBatch();
-                        delete.executeBatch();
-
+                        Map<String, String> stored = storedRoles.getOrDefault(g.getName(), Collections.emptyMap());
                         Set<String> seenUserIds = new HashSet<>();
 
                         for (Group.Membership m : g.getMembers()) {
@@ -95,29 +208,126 @@ public class ReplicationState implements TargetStore {
                                 seenUserIds.add(m.userId);
                             }
 
-                            insert.clearParameters();
-                            insert.param(targetId);
-                            insert.param(g.getName());
-                            insert.param(m.userId);
-                            insert.param(m.role.toString());
-
-                            insert.addBatch();
+                            String storedRole = stored.get(m.userId);
+
+                            if (storedRole == null) {
+                                insert.clearParameters();
+                                insert.param(targetId);
+                                insert.param(g.getName());
+                                insert.param(m.userId);
+                                insert.param(m.role.toString());
+                                insert.addBatch();
+                                inserts++;
+                            } else if (!storedRole.equals(m.role.toString())) {
+                                change.clearParameters();
+                                change.param(m.role.toString());
+                                change.param(targetId);
+                                change.param(g.getName());
+                                change.param(m.userId);
+                                change.addBatch();
+                                changes++;
+                            }
                         }
 
-                        insert.executeBatch();
+                        for (String userId : stored.keySet()) {
+                            if (!seenUserIds.contains(userId)) {
+                                delete.clearParameters();
+                                delete.param(targetId);
+                                delete.param(g.getName());
+                                delete.param(userId);
+                                delete.addBatch();
+                                deletes++;
+                            }
+                        }
                     }
 
+                    // Deletes first, in case we're swapping a user for one
+                    // that only differs in case.
+                    delete.executeBatch();
+                    insert.executeBatch();
+                    change.executeBatch();
+
                     c.commit();
                 } finally {
                     delete.close();
                     insert.close();
+                    change.close();
                 }
 
+                logger.info("Stored remote memberships for {} groups on {}: {} added, {} removed, {} role changes",
+                            groupNames.size(), targetId, inserts, deletes, changes);
+
                 return null;
             }
         });
     }
 
+    // Page through the groups we hold memberships for on `targetId`, in group
+    // name order, starting after `afterGroupName` (null to start from the
+    // beginning).
+    public List<String> targetGroupNames(final String targetId, final String afterGroupName, final int limit) throws Exception {
+        return DB.transaction(db, new DBAction<List<String>>() {
+            @Override
+            public List<String> call(DBConnection c) throws SQLException {
+                // No empty string comparison here because Oracle treats '' as NULL.
+                DBPreparedStatement select = c.run("select distinct group_id from groupsync_target_state" +
+                        " where target_id = ?" +
+                        ((afterGroupName == null) ? "" : " AND group_id > ?") +
+                        " order by group_id");
+                select.param(targetId);
+
+                if (afterGroupName != null) {
+                    select.param(afterGroupName);
+                }
+
+                // Otherwise the driver reads every remaining group just to
+                // give us a page of them.
+                select.maxRows(limit);
+
+                List<String> result = new ArrayList<>();
+
+                try (DBResults rows = select.executeQuery()) {
+                    for (ResultSet rs : rows) {
+                        result.add(rs.getString("group_id"));
+                    }
+                }
+
+                return result;
+            }
+        });
+    }
+
+    // Our local mirror of the memberships of `groupNames` as they were last
+    // seen (or written) on `targetId`.
+    public GroupSet targetGroupMemberships(final String targetId, final Collection<String> groupNames) throws Exception {
+        final GroupSet result = new GroupSet();
+
+        if (groupNames.isEmpty()) {
+            return result;
+        }
+
+        DB.transaction(db, new DBAction<Void>() {
+            @Override
+            public Void call(DBConnection c) throws SQLException {
+                for (List<String> chunk : DB.partition(groupNames, DB.MAX_IN_CLAUSE_SIZE)) {
+                    DBPreparedStatement select = c.run("select group_id, user_id, role from groupsync_target_state" +
+                            " where target_id = ? AND group_id in (" + c.placeholders(chunk) + ")");
+                    select.param(targetId);
+                    select.stringParams(chunk);
+
+                    for (ResultSet rs : select.executeQuery()) {
+                        Group group = result.createOrGetGroup(new Group(rs.getString("group_id"), ""));
+                        group.addMembership(rs.getString("user_id"), rs.getString("role"));
+                    }
+                }
+
+                return null;
+            }
+        });
+
+        return result;
+    }
+
     public void applyDiffs(final String targetId, Collection<Differences.Difference> diffs) throws Exception {
         DB.transaction(db, new DBAction<Void>() {
             @Override
@@ -173,56 +383,146 @@ public class ReplicationState implements TargetStore {
     }
 
 
-    public void incrementFailureCount(final String sourceId, Group group) throws Exception {
+    // Record another failure for each of `groups`.  `backoffMs` gives how long
+    // a group should wait before its next attempt, given how many times in a
+    // row it has now failed.
+    public void incrementFailureCounts(final String sourceId, final Collection<Group> groups,
+                                       final LongUnaryOperator backoffMs, final long now) throws Exception {
+        if (groups.isEmpty()) {
+            return;
+        }
+
+        // Our cache tells us which groups already have a row, and their
+        // current failure counts
+        final SourceState sourceState = sourceState(sourceId);
+        final Map<String, Backoff> newBackoffs = new HashMap<>();
+
+        for (Group group : groups) {
+            if (!newBackoffs.containsKey(group.getName())) {
+                long failureCount = failureCount(sourceId, group) + 1;
+                long delay = backoffMs.applyAsLong(failureCount);
+
+                if (delay > 0) {
+                    logger.info("Group {} has failed {} times in a row.  Not retrying it for {} ms",
+                                group.getName(), failureCount, delay);
+                }
+
+                newBackoffs.put(group.getName(), new Backoff(failureCount, (delay > 0) ? now + delay : 0));
+            }
+        }
+
         DB.transaction(db, new DBAction<Void>() {
             @Override
             public Void call(DBConnection c) throws SQLException {
                 DBPreparedStatement update = c.run("update groupsync_source_state" +
-                        " set failure_count = failure_count + 1 where source_id = ? AND group_id = ?");
+                        " set failure_count = ?, next_eligible_time = ? where source_id = ? AND group_id = ?");
 
                 DBPreparedStatement insert = c.run("insert into groupsync_source_state" +
-                        " (source_id, group_id, failure_count) values (?, ?, 1)");
+                        " (source_id, group_id, failure_count, next_eligible_time) values (?, ?, ?, ?)");
+
+                try {
+                    for (Map.Entry<String, Backoff> entry : newBackoffs.entrySet()) {
+                        Backoff backoff = entry.getValue();
+
+                        if (sourceState.syncTimes.containsKey(entry.getKey())) {
+                            update.clearParameters();
+                            update.param(backoff.failureCount);
+                            update.param(backoff.nextEligibleTime);
+                            update.param(sourceId);
+                            update.param(entry.getKey());
+                            update.addBatch();
+                        } else {
+                            insert.clearParameters();
+                            insert.param(sourceId);
+                            insert.param(entry.getKey());
+                            insert.param(backoff.failureCount);
+                            insert.param(backoff.nextEligibleTime);
+                            insert.addBatch();
+                        }
+                    }
 
-                update.param(sourceId);
-                update.param(group.getName());
+                    update.executeBatch();
+                    insert.executeBatch();
 
-                if (update.executeUpdate() == 0) {
-                    insert.param(sourceId);
-                    insert.param(group.getName());
-                    insert.executeUpdate();
+                    c.commit();
+                } finally {
+                    update.close();
+                    insert.close();
                 }
 
-                c.commit();
-
                 return null;
             }
         });
+
+        for (Map.Entry<String, Backoff> entry : newBackoffs.entrySet()) {
+            // New rows still haven't been synced
+            sourceState.syncTimes.putIfAbsent(entry.getKey(), 0L);
+            sourceState.backoffs.put(entry.getKey(), entry.getValue());
+        }
     }
 
     public void markGroupAsSynced(final String sourceId, Group group, long now) throws Exception {
+        markGroupsAsSynced(sourceId, Collections.singletonList(group), now);
+    }
+
+    public void markGroupsAsSynced(final String sourceId, final Collection<Group> groups, final long now) throws Exception {
+        if (groups.isEmpty()) {
+            return;
+        }
+
+        // Our cache tells us which groups already have a row
+        final SourceState sourceState = sourceState(sourceId);
+        final Map<String, Long> syncTimes = sourceState.syncTimes;
+
         DB.transaction(db, new DBAction<Void>() {
             @Override
             public Void call(DBConnection c) throws SQLException {
-                DBPreparedStatement delete = c.run("delete from groupsync_source_state" +
-                        " where source_id = ? AND group_id = ?");
+                DBPreparedStatement update = c.run("update groupsync_source_state" +
+                        " set last_sync_time = ?, failure_count = 0, next_eligible_time = 0 where source_id = ? AND group_id = ?");
 
                 DBPreparedStatement insert = c.run("insert into groupsync_source_state" +
-                        " (source_id, group_id, last_sync_time, failure_count) values (?, ?, ?, 0)");
+                        " (source_id, group_id, last_sync_time, failure_count, next_eligible_time) values (?, ?, ?, 0, 0)");
 
-                delete.param(sourceId);
-                delete.param(group.getName());
-                delete.executeUpdate();
+                try {
+                    Set<String> seenGroupNames = new HashSet<>();
 
-                insert.param(sourceId);
-                insert.param(group.getName());
-                insert.param(now);
-                insert.executeUpdate();
+                    for (Group group : groups) {
+                        if (!seenGroupNames.add(group.getName())) {
+                            continue;
+                        }
 
-                c.commit();
+                        if (syncTimes.containsKey(group.getName())) {
+                            update.clearParameters();
+                            update.param(now);
+                            update.param(sourceId);
+                            update.param(group.getName());
+                            update.addBatch();
+                        } else {
+                            insert.clearParameters();
+                            insert.param(sourceId);
+                            insert.param(group.getName());
+                            insert.param(now);
+                            insert.addBatch();
+                        }
+                    }
+
+                    update.executeBatch();
+                    insert.executeBatch();
+
+                    c.commit();
+                } finally {
+                    update.close();
+                    insert.close();
+                }
 
                 return null;
             }
         });
+
+        for (Group group : groups) {
+            syncTimes.put(group.getName(), now);
+            sourceState.backoffs.remove(group.getName());
+        }
     }
 
     public Set<String> readSet(GroupTarget target, String setName) throws Exception {
@@ -245,6 +545,34 @@ public class ReplicationState implements TargetStore {
         });
     }
 
+    // Which of `values` are in the set
+    public Set<String> readSetValues(GroupTarget target, String setName, Collection<String> values) throws Exception {
+        if (values.isEmpty()) {
+            return new HashSet<>();
+        }
+
+        return DB.transaction(db, new DBAction<Set<String>>() {
+            @Override
+            public Set<String> call(DBConnection c) throws SQLException {
+                Set<String> result = new HashSet<>();
+
+                for (List<String> chunk : DB.partition(values, DB.MAX_IN_CLAUSE_SIZE)) {
+                    DBPreparedStatement select = c.run("select value from groupsync_target_store" +
+                            " where target_id = ? AND set_name = ? AND value in (" + c.placeholders(chunk) + ")");
+                    select.param(target.getId());
+                    select.param(setName);
+                    select.stringParams(chunk);
+
+                    for (ResultSet rs : select.executeQuery()) {
+                        result.add(rs.getString("value"));
+                    }
+                }
+
+                return result;
+            }
+        });
+    }
+
     public void writeSet(GroupTarget target, String setName, Set<String> set) throws Exception {
         DB.transaction(db, new DBAction<Void>() {
             @Override
@@ -253,7 +581,9 @@ public class ReplicationState implements TargetStore {
                         " where target_id = ? AND set_name = ?");
 
                 DBPreparedStatement insert = c.run("insert into groupsync_target_store" +
-                        " (target_id, set_name, value) values (?, ?, ?)");
+                        " (target_id, set_name, value, added_time) values (?, ?, ?, ?)");
+
+                long now = System.currentTimeMillis();
 
                 delete.param(target.getId());
                 delete.param(setName);
@@ -264,6 +594,7 @@ public class ReplicationState implements TargetStore {
                     insert.param(target.getId());
                     insert.param(setName);
                     insert.param(value);
+                    insert.param(now);
                     insert.addBatch();
                 }
 
@@ -276,6 +607,105 @@ public class ReplicationState implements TargetStore {
         });
     }
 
+    public void addToSet(GroupTarget target, String setName, Collection<String> values) throws Exception {
+        if (values.isEmpty()) {
+            return;
+        }
+
+        DB.transaction(db, new DBAction<Void>() {
+            @Override
+            public Void call(DBConnection c) throws SQLException {
+                // Our table doesn't enforce uniqueness, so clear out any
+                // existing copies of these values first.
+                DBPreparedStatement delete = c.run("delete from groupsync_target_store" +
+                        " where target_id = ? AND set_name = ? AND value = ?");
+
+                DBPreparedStatement insert = c.run("insert into groupsync_target_store" +
+                        " (target_id, set_name, value, added_time) values (?, ?, ?, ?)");
+
+                long now = System.currentTimeMillis();
+
+                try {
+                    for (String value : values) {
+                        delete.clearParameters();
+                        delete.param(target.getId());
+                        delete.param(setName);
+                        delete.param(value);
+                        delete.addBatch();
+
+                        insert.clearParameters();
+                        insert.param(target.getId());
+                        insert.param(setName);
+                        insert.param(value);
+                        insert.param(now);
+                        insert.addBatch();
+                    }
+
+                    delete.executeBatch();
+                    insert.executeBatch();
+
+                    c.commit();
+                } finally {
+                    delete.close();
+                    insert.close();
+                }
+
+                return null;
+            }
+        });
+    }
+
+    public void removeFromSet(GroupTarget target, String setName, Collection<String> values) throws Exception {
+        if (values.isEmpty()) {
+            return;
+        }
+
+        DB.transaction(db, new DBAction<Void>() {
+            @Override
+            public Void call(DBConnection c) throws SQLException {
+                DBPreparedStatement delete = c.run("delete from groupsync_target_store" +
+                        " where target_id = ? AND set_name = ? AND value = ?");
+
+                try {
+                    for (String value : values) {
+                        delete.clearParameters();
+                        delete.param(target.getId());
+                        delete.param(setName);
+                        delete.param(value);
+                        delete.addBatch();
+                    }
+
+                    delete.executeBatch();
+
+                    c.commit();
+                } finally {
+                    delete.close();
+                }
+
+                return null;
+            }
+        });
+    }
+
+    public void removeFromSetAddedBefore(GroupTarget target, String setName, long time) throws Exception {
+        DB.transaction(db, new DBAction<Void>() {
+            @Override
+            public Void call(DBConnection c) throws SQLException {
+                DBPreparedStatement delete = c.run("delete from groupsync_target_store" +
+                        " where target_id = ? AND set_name = ? AND added_time < ?");
+
+                delete.param(target.getId());
+                delete.param(setName);
+                delete.param(time);
+                delete.executeUpdate();
+
+                c.commit();
+
+                return null;
+            }
+        });
+    }
+
     public void clearSet(GroupTarget target, String setName) throws Exception {
         DB.transaction(db, new DBAction<Void>() {
             @Override
@@ -2,9 +2,15 @@ package edu.nyu.classes.groupsync.main;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,6 +20,10 @@ import edu.nyu.classes.groupsync.api.Group;
 import edu.nyu.classes.groupsync.api.GroupSet;
 import edu.nyu.classes.groupsync.api.GroupSource;
 import edu.nyu.classes.groupsync.api.GroupTarget;
+import edu.nyu.classes.groupsync.main.metrics.Metrics;
+import edu.nyu.classes.groupsync.main.tracing.Span;
+import edu.nyu.classes.groupsync.main.tracing.Tracer;
+import edu.nyu.classes.groupsync.main.jfr.PassStageEvent;
 
 public class Replicator extends Thread {
     private static Logger logger = LoggerFactory.getLogger(Replicator.class);
@@ -24,15 +34,79 @@ public class Replicator extends Thread {
     private ReplicationState state;
     private Config config;
 
-    private class Failure {
-        public long failureCount = 0;
-        public long currentPenalty = 0;
-    }
+    // Held while a pass is reading from or writing to our target.  The
+    // DriftReconciler takes it too, so it never races with a pass.
+    private ReentrantLock targetLock = new ReentrantLock();
+
+    // The groups the DriftReconciler is checking, and which of them a pass
+    // has touched since it started.  Guarded by targetLock.
+    private Set<String> watchedGroups = new HashSet<>();
+    private Set<String> touchedWatchedGroups = new HashSet<>();
+
+    // What we tell Monitoring about how we're doing.  Written by our thread
+    // after each pass and read from the metrics server's.
+    private volatile long lastSuccessfulPassTime = 0;
+    private volatile long sourceWatermark = 0;
+    private volatile long consecutiveFailures = 0;
+    private volatile long penalisedGroupCount = 0;
+    private volatile String lastError = null;
 
-    private Map<String, Failure> failureCountsByGroupName = new HashMap<>();
+    // If set, each pass is planned before it starts so we can compare the
+    // estimate with what actually happened.
+    private PassPlanner planner;
+    private volatile PassPlanner.Plan lastPlan;
+
+    // How many groups we fetch, diff, apply and commit at a time
+    private int chunkSize = 1000;
 
     // Backdate our time a little just to avoid the risk of slow transactions, etc.
-    private static long UPDATE_MARGIN_MS = 5000;
+    static long UPDATE_MARGIN_MS = 5000;
+
+    // Times one stage of a pass, for our metrics and the pass's trace:
+    //
+    //   try (Stage stage = stage("fetch_target")) { ... }
+    //
+    class Stage implements AutoCloseable {
+        private String name;
+        private long start;
+        private Span span;
+        private PassStageEvent event;
+
+        private Stage(String name) {
+            this.name = name;
+            this.start = System.currentTimeMillis();
+            this.span = Tracer.span(name);
+
+            this.event = new PassStageEvent();
+            event.source = source.getId();
+            event.target = target.getId();
+            event.stage = name;
+            event.begin();
+        }
+
+        public Stage attr(String key, Object value) {
+            span.attr(key, value);
+
+            if ("group_count".equals(key) && value instanceof Number) {
+                event.groupCount = ((Number) value).longValue();
+            }
+
+            return this;
+        }
+
+        public void close() {
+            span.close();
+            event.commit();
+
+            Metrics.histogram("groupsync_pass_stage_ms", "Time taken by each stage of a replication pass",
+                              "source", source.getId(), "target", target.getId(), "stage", name)
+                .record(System.currentTimeMillis() - start);
+        }
+    }
+
+    Stage stage(String name) {
+        return new Stage(name);
+    }
 
     public Replicator(long pollIntervalMs, GroupSource source, GroupTarget target, ReplicationState state, Config config) {
         this.pollIntervalMs = pollIntervalMs;
@@ -51,6 +125,83 @@ public class Replicator extends Thread {
         }
 
         this.setName(String.format("Replicator_%s_to_%s", source.getId(), target.getId()));
+
+        Metrics.gauge("groupsync_replicator_lag_ms", "Time since the source was last fully synced to the target",
+                      () -> lagMs(System.currentTimeMillis()),
+                      "source", source.getId(), "target", target.getId());
+        Metrics.gauge("groupsync_replicator_consecutive_failures", "Replication passes in a row that ended in an exception",
+                      () -> consecutiveFailures,
+                      "source", source.getId(), "target", target.getId());
+        Metrics.gauge("groupsync_replicator_penalised_groups", "Groups being skipped because they keep failing to sync",
+                      () -> penalisedGroupCount,
+                      "source", source.getId(), "target", target.getId());
+
+        Monitoring.register(this);
+    }
+
+    void processInChunksOf(int chunkSize) {
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    void estimatePasses(PassPlanner planner) {
+        this.planner = planner;
+
+        Metrics.gauge("groupsync_pass_planned_queries", "Google queries the current (or last) pass was expected to need",
+                      () -> (lastPlan == null) ? 0 : lastPlan.totalQueries(),
+                      "source", source.getId(), "target", target.getId());
+        Metrics.gauge("groupsync_pass_estimated_ms", "How long the current (or last) pass was expected to take",
+                      () -> (lastPlan == null) ? 0 : lastPlan.estimatedMs(),
+                      "source", source.getId(), "target", target.getId());
+    }
+
+    String sourceId() {
+        return source.getId();
+    }
+
+    String targetId() {
+        return target.getId();
+    }
+
+    long lastSuccessfulPassTime() {
+        return lastSuccessfulPassTime;
+    }
+
+    // The time up to which the source is known to be fully synced
+    long sourceWatermark() {
+        return sourceWatermark;
+    }
+
+    long lagMs(long now) {
+        return (sourceWatermark == 0) ? 0 : Math.max(0, now - sourceWatermark);
+    }
+
+    long consecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    long penalisedGroupCount() {
+        return penalisedGroupCount;
+    }
+
+    String lastError() {
+        return lastError;
+    }
+
+    ReentrantLock targetLock() {
+        return targetLock;
+    }
+
+    // Start keeping track of which of `groupNames` our passes touch (in place
+    // of any we were tracking before).  Call with targetLock held.
+    void watchGroups(Collection<String> groupNames) {
+        watchedGroups = new HashSet<>(groupNames);
+        touchedWatchedGroups = new HashSet<>();
+    }
+
+    // The watched groups touched since `watchGroups`.  Call with targetLock
+    // held.
+    Set<String> touchedWatchedGroups() {
+        return touchedWatchedGroups;
     }
 
     public void run() {
@@ -66,19 +217,49 @@ public class Replicator extends Thread {
             iteration++;
 
 
-            try {
+            try (Span trace = Tracer.startTrace("replication_pass")
+                     .attr("source", source.getId())
+                     .attr("target", target.getId())
+                     .attr("iteration", iteration);
+                 Stage pass = stage("pass")) {
                 long now = System.currentTimeMillis();
 
                 // Fetch the groups that were updated since we last checked
                 long lastSourceUpdateTime = state.lastUpdateForSource(source.getId());
+                sourceWatermark = lastSourceUpdateTime;
 
                 lastSourceUpdateTime = Math.max(0, lastSourceUpdateTime - UPDATE_MARGIN_MS);
 
                 logger.info("Looking for updates from '{}' since {}", source.getId(), lastSourceUpdateTime);
 
-                GroupSet updatedGroups = source.updatedGroupsSince(lastSourceUpdateTime);
+                // Groups that keep failing are backed off (see
+                // `backoffMs`), and we don't even fetch their members until
+                // they're due another try.
+                Set<String> backingOff = new HashSet<>();
+
+                GroupSet updatedGroups;
+                try (Stage stage = stage("source_query")) {
+                    updatedGroups = source.updatedGroupsSince(lastSourceUpdateTime, (groupName) -> {
+                            if (isEligible(groupName, now)) {
+                                return true;
+                            } else {
+                                backingOff.add(groupName);
+                                return false;
+                            }
+                        });
+                    stage.attr("group_count", updatedGroups.groupNames().size()).attr("backing_off_count", backingOff.size());
+                }
 
-                logger.debug("Groups from source {}: {}", source.getId(), updatedGroups.summary());
+                if (!backingOff.isEmpty()) {
+                    logger.info("Skipping {} groups from source {} that are backing off after repeated failures",
+                                backingOff.size(), source.getId());
+                }
+
+                // Summaries of a big pass run to megabytes, so don't build them
+                // unless someone's going to see them.
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Groups from source {}: {}", source.getId(), updatedGroups.summary());
+                }
 
                 // It's possible that we already synced some of these groups on
                 // a previous run, since the source update time is only bumped
@@ -90,139 +271,323 @@ public class Replicator extends Thread {
 
                     if (groupSyncTime > g.getLastModifiedTime()) {
                         // We can skip this group
-                        logger.info("Skipping previously synced group: {}", g.getName());
+                        logger.debug("Skipping previously synced group: {}", g.getName());
                         groupsToSkip.add(g);
                     }
                 }
 
+                if (!groupsToSkip.isEmpty()) {
+                    logger.info("Skipping {} previously synced groups", groupsToSkip.size());
+                }
+
                 updatedGroups.removeAll(groupsToSkip);
 
                 if (updatedGroups.isEmpty()) {
-                    logger.info("No group updates were found for source {}", source.getId());
-                    state.markSourceAsUpdated(source.getId(), now);
+                    // If we skipped groups that are backing off, don't mark
+                    // the source as up-to-date yet or we'd never go back for
+                    // them.
+                    if (backingOff.isEmpty()) {
+                        logger.info("No group updates were found for source {}", source.getId());
+                        state.markSourceAsUpdated(source.getId(), now);
+                    }
+
+                    passSucceeded(now);
                     continue;
                 }
 
-                // Groups that previously failed should have their penalties
-                // applied.  When a group fails to sync a few times in a row,
-                // we'll back off how frequently we retry.
-                for (Group g : updatedGroups) {
-                    Failure f = failureCountsByGroupName.get(g.getName());
+                trace.attr("group_count", updatedGroups.groupNames().size());
 
-                    if (f != null && f.currentPenalty > 0) {
-                        f.currentPenalty -= 1;
-                        groupsToSkip.add(g);
-
-                        logger.info("Skipping group for current run due to failure penalty: {} ({} rounds left until next run)",
-                                    g.getName(),
-                                    f.currentPenalty);
+                if (planner != null) {
+                    try (Stage stage = stage("plan")) {
+                        lastPlan = planner.plan(source.getId(), updatedGroups);
+                        stage.attr("planned_queries", lastPlan.totalQueries()).attr("estimated_ms", lastPlan.estimatedMs());
+                        logger.info("Expecting pass from {} to {} to need {} queries and take about {} ms",
+                                    source.getId(), target.getId(), lastPlan.totalQueries(), lastPlan.estimatedMs());
                     }
                 }
 
-                updatedGroups.removeAll(groupsToSkip);
+                syncToTarget(updatedGroups, backingOff.size(), now);
 
-                // If everything else got skipped, nothing more to do on this
-                // run, but don't mark the group source as up-to-date yet.
-                if (updatedGroups.isEmpty()) {
-                    continue;
+                passSucceeded(now);
+            } catch (Exception e) {
+                consecutiveFailures++;
+                lastError = String.valueOf(e.getMessage());
+
+                Metrics.counter("groupsync_pass_errors_total", "Replication passes that ended in an exception",
+                                "source", source.getId(), "target", target.getId())
+                    .inc();
+
+                if (isCriticalException(e)) {
+                    Monitoring.recordException(e);
                 }
 
-                // Pull their group memberships
-                GroupSet groupsFromTarget = target.fetchGroupsForNames(updatedGroups.groupNames());
+                logger.error("Caught an exception in replicator from {} to {}: {}",
+                        source.getId(), target.getId(), e.getMessage(), e);
+            }
+        }
+    }
 
-                // Store the remote memberships as they currently stand.  This
-                // allows our REST queries to return relatively up-to-date
-                // information about who has and hasn't been synced yet.
-                state.storeRemoteMemberships(target.getId(), groupsFromTarget);
 
-                // These groups exist in our source but not the target.
-                List<Group> newGroups = new ArrayList<>();
+    // A pass got to the end without throwing (although some of its groups
+    // may have failed)
+    private void passSucceeded(long now) throws Exception {
+        lastSuccessfulPassTime = now;
+        consecutiveFailures = 0;
+        lastError = null;
 
-                for (Group g : updatedGroups) {
-                    if (!groupsFromTarget.hasGroup(g.getName())) {
-                        newGroups.add(g);
+        sourceWatermark = state.lastUpdateForSource(source.getId());
+        penalisedGroupCount = state.backingOffCount(source.getId(), now);
+    }
 
-                        // For the sake of our upcoming membership comparison,
-                        // we'll treat this as an empty group.
-                        groupsFromTarget.createOrGetGroup(new Group(g.getName(), g.getDescription()));
-                    }
-                }
+    private boolean isEligible(String groupName, long now) {
+        try {
+            return state.isEligible(source.getId(), groupName, now);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to check failure backoff for group " + groupName, e);
+        }
+    }
+
+    // How long to leave a group alone after it has failed `failureCount`
+    // times in a row.  The first few failures are retried on the next pass,
+    // then we double the wait each time (up to a limit).  Half of each wait
+    // is random so that groups that failed together don't all come back
+    // together.
+    private long backoffMs(long failureCount) {
+        long allowableFailures = config.getLong("sakai_google.allowable_failures", 3);
+
+        if (failureCount <= allowableFailures) {
+            return 0;
+        }
 
-                logger.debug("Groups from target {}: {}", target.getId(), groupsFromTarget.summary());
+        long baseMs = config.getLong("sakai_google.failure_backoff_ms",
+                                     config.getLong("sakai_google.failure_penalty", 30) * pollIntervalMs);
+        long maxMs = config.getLong("sakai_google.max_failure_backoff_ms", 24 * 60 * 60 * 1000);
 
-                target.createNewGroups(newGroups, state);
+        long delay = baseMs;
+        for (long i = allowableFailures + 1; i < failureCount && delay < maxMs; i++) {
+            delay *= 2;
+        }
 
-                Collection<Differences.Difference> diffs = new GroupSetDiffer().diff(groupsFromTarget, updatedGroups);
+        delay = Math.min(delay, maxMs);
 
-                logger.debug("Calculated differences: {}", diffs);
+        return (delay / 2) + ThreadLocalRandom.current().nextLong((delay / 2) + 1);
+    }
 
-                Collection<Differences.Difference> appliedDiffs = target.applyDiffs(diffs, state);
+    // Sync `updatedGroups` a chunk at a time, so we only ever hold one chunk's
+    // worth of target memberships and diffs.  Each chunk is committed as it
+    // finishes, but the source is only marked as updated once they all have.
+    private void syncToTarget(GroupSet updatedGroups, long backingOffCount, long now) throws Exception {
+        List<List<Group>> chunks = new ArrayList<>();
+        List<Group> chunk = new ArrayList<>();
+
+        for (Group g : updatedGroups) {
+            if (chunk.size() >= chunkSize) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+            }
 
-                state.applyDiffs(target.getId(), appliedDiffs);
+            chunk.add(g);
+        }
 
-                // Any diffs that weren't successfully applied should prevent
-                // that group from being marked as synced.  We'll retry those
-                // groups on a subsequent run.
-                //
-                List<Group> failedGroups = new ArrayList<>();
-                for (Differences.Difference diff : diffs) {
-                    if (!appliedDiffs.contains(diff) && !failedGroups.contains(diff.group)) {
-                        failedGroups.add(diff.group);
-                    }
-                }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
 
-                // Mark off the successfully synced groups
-                long allowableFailures = config.getLong("sakai_google.allowable_failures", 3);
-                long penalty = config.getLong("sakai_google.failure_penalty", 30);
+        long failedGroupCount = 0;
 
-                for (Group g : updatedGroups) {
-                    if (failedGroups.contains(g)) {
-                        if (!failureCountsByGroupName.containsKey(g.getName())) {
-                            // First failure for this group
-                            failureCountsByGroupName.put(g.getName(), new Failure());
-                        }
-
-                        Failure f = failureCountsByGroupName.get(g.getName());
-                        f.failureCount += 1;
-
-                        if (f.failureCount > allowableFailures) {
-                            // Apply a penalty
-                            f.currentPenalty = penalty;
-
-                            logger.info("Group {} has failed more than {} times.  Skipping the next {} iterations",
-                                        g.getName(),
-                                        allowableFailures,
-                                        penalty);
-                        }
-
-                        state.incrementFailureCount(source.getId(), g);
-                    } else {
-                        failureCountsByGroupName.remove(g.getName());
-
-                        state.markGroupAsSynced(source.getId(), g, now);
-                        source.markGroupAsSynced(g);
-                    }
-                }
+        for (int i = 0; i < chunks.size(); i++) {
+            GroupSet chunkGroups = new GroupSet();
+            for (Group g : chunks.get(i)) {
+                chunkGroups.createOrGetGroup(g);
+            }
 
-                // If there were no errors, we can mark the source as fully updated
-                if (failedGroups.isEmpty() && failureCountsByGroupName.isEmpty()) {
-                    logger.info("Full sync for source {} succeeded", source.getId());
-                    state.markSourceAsUpdated(source.getId(), now);
-                } else {
-                    logger.info("{} groups failed to fully sync while syncing source {}", failedGroups.size() + failureCountsByGroupName.size(), source.getId());
-                }
+            // Done with this one once it's in its GroupSet
+            chunks.set(i, null);
 
-            } catch (Exception e) {
-                if (isCriticalException(e)) {
-                    Monitoring.recordException(e);
-                }
+            // Let the DriftReconciler in between chunks
+            targetLock.lock();
+            try (Stage stage = stage("chunk").attr("chunk", i + 1).attr("chunk_count", chunks.size()).attr("group_count", chunkGroups.groupNames().size())) {
+                noteTouchedGroups(chunkGroups);
+                failedGroupCount += syncChunk(chunkGroups, now);
+            } finally {
+                targetLock.unlock();
+            }
+        }
 
-                logger.error("Caught an exception in replicator from {} to {}: {}",
-                        source.getId(), target.getId(), e.getMessage(), e);
+        // If there were no errors (and we didn't skip anything), we can mark
+        // the source as fully updated
+        if (failedGroupCount == 0 && backingOffCount == 0) {
+            logger.info("Full sync for source {} succeeded", source.getId());
+            state.markSourceAsUpdated(source.getId(), now);
+        } else {
+            logger.info("{} groups failed to fully sync while syncing source {} ({} more are backing off)",
+                        failedGroupCount, source.getId(), backingOffCount);
+        }
+    }
+
+    private void noteTouchedGroups(GroupSet groups) {
+        if (watchedGroups.isEmpty()) {
+            return;
+        }
+
+        for (String groupName : groups.groupNames()) {
+            if (watchedGroups.contains(groupName)) {
+                touchedWatchedGroups.add(groupName);
             }
         }
     }
 
+    // Fetch, diff, apply and commit one chunk of groups.  Returns the number
+    // that failed.
+    private long syncChunk(GroupSet updatedGroups, long now) throws Exception {
+        Metrics.counter("groupsync_pass_groups_total", "Groups processed by replication passes",
+                        "source", source.getId(), "target", target.getId())
+            .inc(updatedGroups.groupNames().size());
+
+        // Pull their group memberships
+        GroupSet groupsFromTarget;
+        try (Stage stage = stage("fetch_target").attr("group_count", updatedGroups.groupNames().size())) {
+            groupsFromTarget = target.fetchGroupsForNames(updatedGroups.groupNames());
+        }
+
+        // Store the remote memberships as they currently stand.  This
+        // allows our REST queries to return relatively up-to-date
+        // information about who has and hasn't been synced yet.
+        try (Stage stage = stage("store_remote_memberships")) {
+            state.storeRemoteMemberships(target.getId(), groupsFromTarget);
+        }
+
+        // These groups exist in our source but not the target.
+        List<Group> newGroups = new ArrayList<>();
+
+        for (Group g : updatedGroups) {
+            if (!groupsFromTarget.hasGroup(g.getName())) {
+                newGroups.add(g);
+
+                // For the sake of our upcoming membership comparison,
+                // we'll treat this as an empty group.
+                groupsFromTarget.createOrGetGroup(new Group(g.getName(), g.getDescription()));
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Groups from target {}: {}", target.getId(), groupsFromTarget.summary());
+        }
+
+        Collection<Differences.Difference> diffs = new GroupSetDiffer().diff(groupsFromTarget, updatedGroups);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Calculated differences: {}", diffs);
+        }
+
+        // Changes to groups that already exist go first, so they don't wait on
+        // a big batch of group creations.
+        Set<String> newGroupNames = new HashSet<>();
+        for (Group g : newGroups) {
+            newGroupNames.add(g.getName());
+        }
+
+        List<Differences.Difference> existingGroupDiffs = new ArrayList<>();
+        List<Differences.Difference> newGroupDiffs = new ArrayList<>();
+        for (Differences.Difference diff : diffs) {
+            if (newGroupNames.contains(diff.group.getName())) {
+                newGroupDiffs.add(diff);
+            } else {
+                existingGroupDiffs.add(diff);
+            }
+        }
+
+        // Differences don't define equals, so this is by identity anyway, but
+        // say so.
+        Set<Differences.Difference> appliedDiffs = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        try (Stage stage = stage("apply_diffs").attr("diff_count", existingGroupDiffs.size())) {
+            Collection<Differences.Difference> appliedExistingGroupDiffs = target.applyDiffs(existingGroupDiffs, state);
+            state.applyDiffs(target.getId(), appliedExistingGroupDiffs);
+            appliedDiffs.addAll(appliedExistingGroupDiffs);
+        }
+
+        try (Stage stage = stage("create_groups").attr("group_count", newGroups.size())) {
+            target.createNewGroups(newGroups, state);
+        }
+
+        try (Stage stage = stage("apply_new_group_diffs").attr("diff_count", newGroupDiffs.size())) {
+            Collection<Differences.Difference> appliedNewGroupDiffs = target.applyDiffs(newGroupDiffs, state);
+            state.applyDiffs(target.getId(), appliedNewGroupDiffs);
+            appliedDiffs.addAll(appliedNewGroupDiffs);
+        }
+
+        recordDiffCounts(diffs, appliedDiffs);
+
+        // Any diffs that weren't successfully applied should prevent
+        // that group from being marked as synced.  We'll retry those
+        // groups on a subsequent run.
+        //
+        Set<String> failedGroups = new HashSet<>();
+        for (Differences.Difference diff : diffs) {
+            if (!appliedDiffs.contains(diff)) {
+                failedGroups.add(diff.group.getName());
+            }
+        }
+
+        // Mark off the successfully synced groups
+        List<Group> groupsToRetry = new ArrayList<>();
+        List<Group> syncedGroups = new ArrayList<>();
+
+        for (Group g : updatedGroups) {
+            if (failedGroups.contains(g.getName())) {
+                groupsToRetry.add(g);
+            } else {
+                syncedGroups.add(g);
+            }
+        }
+
+        // Our state updates for the chunk all share one connection
+        try (Stage stage = stage("commit").attr("synced_count", syncedGroups.size()).attr("failed_count", groupsToRetry.size())) {
+            commitChunk(groupsToRetry, syncedGroups, now);
+        }
+
+        return failedGroups.size();
+    }
+
+    private void commitChunk(List<Group> groupsToRetry, List<Group> syncedGroups, long now) throws Exception {
+        state.unitOfWork(() -> {
+            state.incrementFailureCounts(source.getId(), groupsToRetry, this::backoffMs, now);
+            state.markGroupsAsSynced(source.getId(), syncedGroups, now);
+
+            source.markGroupsAsSynced(syncedGroups);
+
+            return null;
+        });
+    }
+
+
+    private void recordDiffCounts(Collection<Differences.Difference> diffs, Set<Differences.Difference> appliedSet) {
+        Map<String, Long> applied = new HashMap<>();
+        Map<String, Long> failed = new HashMap<>();
+
+        for (Differences.Difference diff : diffs) {
+            String type = diff.getClass().getSimpleName();
+
+            if (appliedSet.contains(diff)) {
+                applied.merge(type, 1L, Long::sum);
+            } else {
+                failed.merge(type, 1L, Long::sum);
+            }
+        }
+
+        for (Map.Entry<String, Long> entry : applied.entrySet()) {
+            Metrics.counter("groupsync_diffs_total", "Differences found between source and target, by type and outcome",
+                            "target", target.getId(), "type", entry.getKey(), "result", "applied")
+                .inc(entry.getValue());
+        }
+
+        for (Map.Entry<String, Long> entry : failed.entrySet()) {
+            Metrics.counter("groupsync_diffs_total", "Differences found between source and target, by type and outcome",
+                            "target", target.getId(), "type", entry.getKey(), "result", "failed")
+                .inc(entry.getValue());
+        }
+    }
 
     private boolean isCriticalException(Exception e) {
         if (e.toString().indexOf("backendError") >= 0 || e.toString().indexOf("502 Bad Gateway") >= 0) {
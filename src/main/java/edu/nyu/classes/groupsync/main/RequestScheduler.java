@@ -0,0 +1,112 @@
+package edu.nyu.classes.groupsync.main;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Decides who goes next when several threads are waiting on the same rate
+// limit.  Callers take turns, one at a time, and each turn is for a run of
+// queries in some Lane.
+//
+// Turns are ordered using (self-clocked) weighted fair queueing: a turn for N
+// queries costs N / weight of its lane's virtual time, and the waiting turn
+// that would finish first goes next.  So when every lane is busy, each gets
+// its weight's share of the limit, and a lane that has been idle goes
+// straight to the front.
+class RequestScheduler {
+    private static Logger logger = LoggerFactory.getLogger(RequestScheduler.class);
+
+    private Map<Lane, Long> weights = new EnumMap<>(Lane.class);
+
+    // Guarded by `this`
+    private Map<Lane, Double> lastFinishTimes = new EnumMap<>(Lane.class);
+    private PriorityQueue<Turn> waiting = new PriorityQueue<>();
+    private double virtualTime = 0;
+    private long nextSequence = 0;
+    private boolean busy = false;
+
+    private static class Turn implements Comparable<Turn> {
+        public Lane lane;
+        public double finishTime;
+        public long sequence;
+
+        public int compareTo(Turn other) {
+            int result = Double.compare(finishTime, other.finishTime);
+
+            return (result != 0) ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    public RequestScheduler() {
+        for (Lane lane : Lane.values()) {
+            weights.put(lane, lane.defaultWeight());
+            lastFinishTimes.put(lane, 0.0);
+        }
+    }
+
+    // Only meant to be called while we're setting up.
+    public void setWeight(Lane lane, long weight) {
+        if (weight <= 0) {
+            throw new RuntimeException("Bogus weight for lane " + lane + ": " + weight);
+        }
+
+        weights.put(lane, weight);
+    }
+
+    // Wait for our turn, then run `action` (which will generally sleep until
+    // the rate limit allows `count` more queries).
+    public void runInTurn(Lane lane, long count, Runnable action) {
+        awaitTurn(lane, count);
+
+        try {
+            action.run();
+        } finally {
+            endTurn();
+        }
+    }
+
+    private synchronized void awaitTurn(Lane lane, long count) {
+        Turn turn = new Turn();
+        turn.lane = lane;
+        turn.finishTime = Math.max(virtualTime, lastFinishTimes.get(lane)) + ((double) count / weights.get(lane));
+        turn.sequence = nextSequence++;
+
+        lastFinishTimes.put(lane, turn.finishTime);
+        waiting.add(turn);
+
+        if (busy && logger.isDebugEnabled()) {
+            logger.debug("Queued {} queries in lane {} behind {} other callers", count, lane, waiting.size() - 1);
+        }
+
+        while (busy || waiting.peek() != turn) {
+            try {
+                wait();
+            } catch (InterruptedException e) {}
+        }
+
+        waiting.poll();
+        virtualTime = turn.finishTime;
+        busy = true;
+    }
+
+    // The number of callers waiting in `lane`
+    public synchronized int waitingIn(Lane lane) {
+        int result = 0;
+
+        for (Turn turn : waiting) {
+            if (turn.lane == lane) {
+                result++;
+            }
+        }
+
+        return result;
+    }
+
+    private synchronized void endTurn() {
+        busy = false;
+        notifyAll();
+    }
+}
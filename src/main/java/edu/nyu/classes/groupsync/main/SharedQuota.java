@@ -0,0 +1,225 @@
+package edu.nyu.classes.groupsync.main;
+
+import java.lang.management.ManagementFactory;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.nyu.classes.groupsync.main.db.DB;
+import edu.nyu.classes.groupsync.main.db.DBAction;
+import edu.nyu.classes.groupsync.main.db.DBConnection;
+import edu.nyu.classes.groupsync.main.db.DBPreparedStatement;
+import edu.nyu.classes.groupsync.main.db.DBResults;
+
+// Share a Google account's rate limit between groupsync processes (possibly
+// on different hosts), using the replication state database as the referee.
+//
+// Each process leases a slice of the account's quota from the database and
+// hands it out locally until it runs out.  A lease can only be used for
+// `leaseMs` after it was granted, but it keeps counting against the account
+// for a full timestep after that, since that's how long the queries made
+// under it count against Google's limit.
+//
+// When we renew, whatever we didn't use of our previous lease is handed back,
+// so a process making the odd query doesn't tie up a full slice per lease.
+//
+// Lease times come from each host's clock, so the hosts involved need to
+// agree on the time (NTP is plenty).
+class SharedQuota {
+    private static Logger logger = LoggerFactory.getLogger(SharedQuota.class);
+
+    private DataSource db;
+    private String accountKey;
+    private String holder;
+
+    private long queriesPerTimestep;
+    private long timestepMs;
+    private long leaseSize;
+    private long leaseMs;
+
+    // What's left of our current lease, and when we have to stop using it
+    private AtomicLong leasedQueries = new AtomicLong(0);
+    private volatile long leaseExpiry = 0;
+
+    // The row recording our current lease, and how many queries it granted.
+    // Only touched while renewing, which is synchronized.
+    private String leaseId = null;
+    private long leaseGranted = 0;
+
+    public SharedQuota(DataSource db, String accountKey, long queriesPerTimestep, long timestepMs, long leaseSize, long leaseMs) {
+        this.db = db;
+        this.accountKey = accountKey;
+        this.queriesPerTimestep = queriesPerTimestep;
+        this.timestepMs = timestepMs;
+        this.leaseSize = Math.min(leaseSize, queriesPerTimestep);
+        this.leaseMs = leaseMs;
+
+        this.holder = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID().toString();
+    }
+
+    // Block until our share of the account's quota covers another `count`
+    // queries.
+    public void wantQueries(long count) {
+        if (count > queriesPerTimestep) {
+            throw new RuntimeException("Can't share quota for that many concurrent queries: " + count);
+        }
+
+        if (tryTakeLeased(count)) {
+            return;
+        }
+
+        synchronized (this) {
+            while (!tryTakeLeased(count)) {
+                long waitMs = renewLease(count);
+
+                if (waitMs > 0) {
+                    logger.warn("Waiting {} ms for other groupsync processes to free up quota for {}", waitMs, accountKey);
+
+                    try {
+                        Thread.sleep(waitMs);
+                    } catch (InterruptedException e) {}
+                }
+            }
+        }
+    }
+
+    private boolean tryTakeLeased(long count) {
+        while (System.currentTimeMillis() < leaseExpiry) {
+            long available = leasedQueries.get();
+
+            if (available < count) {
+                return false;
+            }
+
+            if (leasedQueries.compareAndSet(available, available - count)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Lease enough quota for `count` queries (and ideally a full slice).
+    // Returns zero if we got it, or how long to wait before trying again.
+    private long renewLease(long count) {
+        // Stop handing out our old lease: whatever is left of it goes back to
+        // the account below.
+        long unused = leasedQueries.getAndSet(0);
+
+        return DB.transaction(db, "Lease rate limit quota for " + accountKey, new DBAction<Long>() {
+            @Override
+            public Long call(DBConnection c) throws SQLException {
+                lockAccount(c);
+
+                long now = System.currentTimeMillis();
+
+                c.run("delete from groupsync_rate_lease where account_key = ? AND counts_until <= ?")
+                    .param(accountKey)
+                    .param(now)
+                    .executeUpdate();
+
+                releaseUnused(c, unused);
+
+                long used = 0;
+                long nextExpiry = now + timestepMs;
+
+                DBPreparedStatement select = c.run("select queries, counts_until from groupsync_rate_lease where account_key = ?");
+                select.param(accountKey);
+
+                for (ResultSet rs : select.executeQuery()) {
+                    used += rs.getLong("queries");
+                    nextExpiry = Math.min(nextExpiry, rs.getLong("counts_until"));
+                }
+
+                long available = queriesPerTimestep - used;
+
+                if (available < count) {
+                    c.commit();
+
+                    return Math.max(nextExpiry - now, 100);
+                }
+
+                long grant = Math.min(Math.max(leaseSize, count), available);
+                String newLeaseId = UUID.randomUUID().toString();
+
+                c.run("insert into groupsync_rate_lease (lease_id, account_key, holder, queries, counts_until) values (?, ?, ?, ?, ?)")
+                    .param(newLeaseId)
+                    .param(accountKey)
+                    .param(holder)
+                    .param(grant)
+                    .param(now + leaseMs + timestepMs)
+                    .executeUpdate();
+
+                c.commit();
+
+                leaseId = newLeaseId;
+                leaseGranted = grant;
+                leasedQueries.set(grant);
+                leaseExpiry = now + leaseMs;
+
+                return 0L;
+            }
+        });
+    }
+
+    // Shrink the row for our previous lease to the queries we actually took
+    // from it (dropping it if we took none), so the rest stops counting
+    // against the account.
+    private void releaseUnused(DBConnection c, long unused) throws SQLException {
+        if (leaseId == null) {
+            return;
+        }
+
+        long taken = leaseGranted - unused;
+
+        if (taken <= 0) {
+            c.run("delete from groupsync_rate_lease where account_key = ? AND lease_id = ?")
+                .param(accountKey)
+                .param(leaseId)
+                .executeUpdate();
+        } else if (unused > 0) {
+            c.run("update groupsync_rate_lease set queries = ? where account_key = ? AND lease_id = ?")
+                .param(taken)
+                .param(accountKey)
+                .param(leaseId)
+                .executeUpdate();
+        }
+
+        // Either way, that lease has nothing more to give
+        leaseId = null;
+    }
+
+    // Serialize competing processes on the row for our account
+    private void lockAccount(DBConnection c) throws SQLException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            DBPreparedStatement select = c.run("select account_key from groupsync_rate_account where account_key = ? for update");
+            select.param(accountKey);
+
+            try (DBResults rows = select.executeQuery()) {
+                if (rows.hasNext()) {
+                    return;
+                }
+            }
+
+            try {
+                c.run("insert into groupsync_rate_account (account_key) values (?)")
+                    .param(accountKey)
+                    .executeUpdate();
+            } catch (SQLException e) {
+                if (!c.isConstraintViolation(e)) {
+                    throw e;
+                }
+
+                // Another process beat us to it.  Fine.
+            }
+        }
+
+        throw new RuntimeException("Couldn't lock rate limit account: " + accountKey);
+    }
+}
@@ -35,6 +35,10 @@ import edu.nyu.classes.groupsync.api.Role;
 import edu.nyu.classes.groupsync.main.Config;
 import edu.nyu.classes.groupsync.main.db.DB;
 import edu.nyu.classes.groupsync.main.db.DBConnection;
+import edu.nyu.classes.groupsync.main.jfr.BrightspaceRequestEvent;
+import edu.nyu.classes.groupsync.main.metrics.Metrics;
+import edu.nyu.classes.groupsync.main.tracing.Span;
+import edu.nyu.classes.groupsync.main.tracing.Tracer;
 
 
 
@@ -122,8 +126,10 @@ public class BrightspaceClient {
                                                            "ouTypeId", orgUnitTypeId,
                                                            "bookmark", bookmark);
 
-                    try (HTTPResponse response = request.get()) {
+                    try (Span span = Tracer.span("brightspace_page").attr("endpoint", "orgstructure/descendants").attr("org_unit", orgUnitOfInterest);
+                         HTTPResponse response = request.get()) {
                         JSON orgUnitData = response.json(JSON.parse("{\"Items\": []}"));
+                        span.attr("item_count", orgUnitData.path("Items").asJSONList().size());
 
                         for (JSON orgUnit : orgUnitData.path("Items").asJSONList()) {
                             result.add(orgUnit.path("Identifier").asStringOrDie());
@@ -208,8 +214,10 @@ public class BrightspaceClient {
                 Future<HTTPResponse> usersRequest = httpGet(endpoint("lp", String.format("/enrollments/orgUnits/%s/users/", courseOfferingId)),
                                                             "bookmark", bookmark);
 
-                try (HTTPResponse usersResponse = usersRequest.get()) {
+                try (Span span = Tracer.span("brightspace_page").attr("endpoint", "enrollments/users").attr("org_unit", courseOfferingId);
+                     HTTPResponse usersResponse = usersRequest.get()) {
                     JSON userData = usersResponse.json(JSON.parse("{\"Items\": []}"));
+                    span.attr("item_count", userData.path("Items").asJSONList().size());
 
                     for (JSON orgUnitUser : userData.path("Items").asJSONList()) {
                         JSON userInfo = orgUnitUser.path("User");
@@ -426,9 +434,26 @@ public class BrightspaceClient {
 
                         req.setHeader("Authorization", String.format("Bearer %s", accessToken));
 
+                        String endpoint = endpointLabel(req.getURI().getPath());
+
+                        BrightspaceRequestEvent event = new BrightspaceRequestEvent();
+                        event.method = req.getMethod();
+                        event.endpoint = endpoint;
+                        event.begin();
+
+                        long start = System.currentTimeMillis();
                         CloseableHttpResponse response = client.execute(req);
 
+                        Metrics.histogram("groupsync_brightspace_request_ms", "Time taken by Brightspace API requests",
+                                          "method", req.getMethod(),
+                                          "endpoint", endpoint)
+                            .record(System.currentTimeMillis() - start);
+
                         int code = response.getStatusLine().getStatusCode();
+
+                        event.status = code;
+                        event.commit();
+
                         if ((attempt + 1) < MAX_TOKEN_ATTEMPTS && (code == 401 || code == 403)) {
                             // Bad token.  Probably expired?  Force a refresh if we have attempts left.
                             this.tokens.accessToken(accessToken);
@@ -442,6 +467,12 @@ public class BrightspaceClient {
             });
     }
 
+    // Request paths without their IDs, so we get one set of metrics per
+    // endpoint rather than one per course.
+    private String endpointLabel(String path) {
+        return path.replaceAll("/[0-9]+(?=/|$)", "/:id");
+    }
+
     private String endpoint(String product, String uri) {
         String baseURL = config.getString("brightspace_api_url", "https://brightspace.nyu.edu/d2l/api").replace("/+", "");
 
@@ -6,6 +6,15 @@ import org.slf4j.LoggerFactory;
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.nyu.classes.groupsync.main.jfr.DBTransactionEvent;
 
 /**
  * Logic for borrowing and returning DB connections.
@@ -18,6 +27,17 @@ public class DB {
         // No public constructor
     }
 
+    /**
+     * What sort of database each DataSource points to.  That won't change, so there's no need to ask every time.
+     */
+    private static final Map<DataSource, String> databaseProductNames = new ConcurrentHashMap<>();
+
+    /**
+     * The connections held by units of work running on this thread (see unitOfWork).
+     */
+    private static final ThreadLocal<Map<DataSource, DBConnection>> unitOfWorkConnections =
+        ThreadLocal.withInitial(HashMap::new);
+
     /**
      * Run some database queries within a transaction.
      */
@@ -29,9 +49,26 @@ public class DB {
      * Run some database queries within a transaction with a helpful message if something goes wrong.
      */
     public static <E> E transaction(DataSource ds, String actionDescription, DBAction<E> action) throws RuntimeException {
+        DBTransactionEvent event = new DBTransactionEvent();
+        event.begin();
+
         try {
+            DBConnection shared = unitOfWorkConnections.get().get(ds);
+
+            if (shared != null) {
+                event.sharedConnection = true;
+                shared.beginTransaction();
+
+                try {
+                    return action.call(shared);
+                } finally {
+                    commitIfUnresolved(shared);
+                    shared.endTransaction();
+                }
+            }
+
             Connection db = ds.getConnection();
-            DBConnection dbc = new DBConnection(db);
+            DBConnection dbc = new DBConnection(db, databaseProductName(ds, db));
             boolean autocommit = db.getAutoCommit();
 
             try {
@@ -39,22 +76,111 @@ public class DB {
 
                 return action.call(dbc);
             } finally {
-
-                if (!dbc.wasResolved()) {
-                    LOG.warn("**************\nDB Transaction was neither committed nor rolled back.  Committing for you.");
-                    new Throwable().printStackTrace();
-                    dbc.commit();
-                }
+                commitIfUnresolved(dbc);
 
                 if (autocommit) {
                     db.setAutoCommit(true);
                 }
 
+                dbc.closeStatements();
                 db.close();
             }
 
         } catch (SQLException e) {
             throw new RuntimeException("Failure in database action: " + actionDescription, e);
+        } finally {
+            event.end();
+
+            if (event.shouldCommit()) {
+                event.action = action.getClass().getName();
+                event.description = actionDescription;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Run `work` with a single connection borrowed from `ds`.  Each DB.transaction against `ds` made by `work` on this
+     * thread is still its own transaction, but they all share the connection and its cache of prepared statements.
+     *
+     * Don't hold one of these open while waiting on something slow--the connection is out of the pool until we're done.
+     */
+    public static <E> E unitOfWork(DataSource ds, Callable<E> work) throws Exception {
+        Map<DataSource, DBConnection> connections = unitOfWorkConnections.get();
+
+        if (connections.containsKey(ds)) {
+            // Already in one
+            return work.call();
         }
+
+        Connection db = ds.getConnection();
+        DBConnection dbc = new DBConnection(db, databaseProductName(ds, db));
+        boolean autocommit = db.getAutoCommit();
+
+        try {
+            db.setAutoCommit(false);
+            connections.put(ds, dbc);
+
+            return work.call();
+        } finally {
+            connections.remove(ds);
+
+            try {
+                if (autocommit) {
+                    db.setAutoCommit(true);
+                }
+
+                dbc.closeStatements();
+            } finally {
+                db.close();
+            }
+        }
+    }
+
+    private static void commitIfUnresolved(DBConnection dbc) throws SQLException {
+        if (!dbc.wasResolved()) {
+            LOG.warn("**************\nDB Transaction was neither committed nor rolled back.  Committing for you.");
+            new Throwable().printStackTrace();
+            dbc.commit();
+        }
+    }
+
+    private static String databaseProductName(DataSource ds, Connection db) throws SQLException {
+        String result = databaseProductNames.get(ds);
+
+        if (result == null) {
+            result = db.getMetaData().getDatabaseProductName();
+            databaseProductNames.put(ds, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * The most values we'll put in a single IN list.  Oracle won't take more than 1000.
+     */
+    public static final int MAX_IN_CLAUSE_SIZE = 500;
+
+    /**
+     * Split `items` into lists of at most `size` items (e.g. for IN lists).
+     */
+    public static <T> List<List<T>> partition(Collection<T> items, int size) {
+        List<List<T>> result = new ArrayList<>();
+        List<T> chunk = new ArrayList<>(size);
+
+        for (T item : items) {
+            chunk.add(item);
+
+            if (chunk.size() == size) {
+                result.add(chunk);
+                chunk = new ArrayList<>(size);
+            }
+        }
+
+        if (!chunk.isEmpty()) {
+            result.add(chunk);
+        }
+
+        return result;
     }
 }
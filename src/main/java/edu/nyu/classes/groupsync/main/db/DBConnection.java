@@ -29,6 +29,9 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.UUID;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -44,13 +47,61 @@ public class DBConnection {
     private boolean resolved;
     private boolean dirty;
     private long logQueryThresholdMS = -1;
+    private String databaseProductName;
+
+    /**
+     * The most idle prepared statements we'll hold on to.
+     */
+    private static final int STATEMENT_CACHE_SIZE = 32;
+
+    /**
+     * Prepared statements that have been closed by their users, keyed on SQL and kept for reuse.  Least recently used
+     * statements are closed for real when the cache is full.
+     */
+    private final Map<String, PreparedStatement> idleStatements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > STATEMENT_CACHE_SIZE) {
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+
+            return false;
+        }
+    };
 
     public DBConnection(Connection connection) {
+        this(connection, null);
+    }
+
+    /**
+     * As above, where we already know what sort of database we're talking to.
+     */
+    public DBConnection(Connection connection, String databaseProductName) {
         this.connection = connection;
+        this.databaseProductName = databaseProductName;
         this.dirty = false;
         this.resolved = false;
     }
 
+    /**
+     * Start a new transaction on this connection (see DB.unitOfWork).
+     */
+    void beginTransaction() {
+        this.dirty = false;
+        this.resolved = false;
+    }
+
+    /**
+     * Finish a transaction on a shared connection.  Even a read-only transaction is ended, so the next one gets a
+     * fresh view of the database.
+     */
+    void endTransaction() throws SQLException {
+        if (!resolved) {
+            commit();
+        }
+    }
+
     public void setTimingEnabled() {
         this.logQueryThresholdMS = 0;
     }
@@ -96,7 +147,54 @@ public class DBConnection {
     }
 
     public DBPreparedStatement run(String sql) throws SQLException {
-        return new DBPreparedStatement(connection.prepareStatement(sql), sql, this);
+        PreparedStatement statement = idleStatements.remove(sql);
+
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+        }
+
+        return new DBPreparedStatement(statement, sql, this);
+    }
+
+    /**
+     * Called when the user of a statement from `run` is finished with it.
+     */
+    void releaseStatement(String sql, PreparedStatement statement) {
+        try {
+            statement.clearParameters();
+            statement.clearBatch();
+            statement.setMaxRows(0);
+        } catch (SQLException e) {
+            // Not worth keeping
+            closeQuietly(statement);
+            return;
+        }
+
+        PreparedStatement replaced = idleStatements.put(sql, statement);
+
+        if (replaced != null && replaced != statement) {
+            closeQuietly(replaced);
+        }
+    }
+
+    /**
+     * Close our cached statements.  Called before the underlying connection is closed.
+     */
+    void closeStatements() {
+        Iterator<PreparedStatement> it = idleStatements.values().iterator();
+
+        while (it.hasNext()) {
+            closeQuietly(it.next());
+            it.remove();
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOG.warn("Failed to close cached statement: " + e);
+        }
     }
 
     public String uuid() {
@@ -117,12 +215,20 @@ public class DBConnection {
         }
     }
 
+    public String getDatabaseProductName() throws SQLException {
+        if (databaseProductName == null) {
+            databaseProductName = connection.getMetaData().getDatabaseProductName();
+        }
+
+        return databaseProductName;
+    }
+
     public boolean isOracle() throws SQLException {
-        return connection.getMetaData().getDatabaseProductName().contains("Oracle");
+        return getDatabaseProductName().contains("Oracle");
     }
 
     public boolean isMySQL() throws SQLException {
-        return connection.getMetaData().getDatabaseProductName().contains("MySQL");
+        return getDatabaseProductName().contains("MySQL");
     }
 
 
@@ -31,6 +31,7 @@ import java.sql.SQLException;
 import java.util.Collection;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Wrap a PreparedStatement, providing nicer parameter handling and transaction commit/rollback checks.
@@ -41,6 +42,8 @@ public class DBPreparedStatement {
     private final PreparedStatement preparedStatement;
     private final String sql;
     private int paramCount;
+    private int batchSize;
+    private boolean released;
 
     public DBPreparedStatement(PreparedStatement preparedStatement, String sql, DBConnection dbc) {
         this.dbConnection = dbc;
@@ -139,14 +142,27 @@ public class DBPreparedStatement {
         return this;
     }
 
+    /**
+     * Have the database stop after `rows` rows of our next query.
+     */
+    public DBPreparedStatement maxRows(int rows) throws SQLException {
+        try {
+            preparedStatement.setMaxRows(rows);
+            return this;
+        } catch (SQLException e) {
+            cleanup();
+            throw e;
+        }
+    }
+
     public int executeUpdate() throws SQLException {
         try {
             dbConnection.markAsDirty();
-            long startTime = System.currentTimeMillis();
+            long startTime = System.nanoTime();
             int result = preparedStatement.executeUpdate();
-            long endTime = System.currentTimeMillis();
 
-            dbConnection.maybeLogTime(sql, endTime - startTime);
+            recordTime(QueryProfiler.Operation.UPDATE, System.nanoTime() - startTime, 0);
+            QueryProfiler.recordRows(sql, result);
 
             return result;
         } finally {
@@ -155,13 +171,12 @@ public class DBPreparedStatement {
     }
 
     public DBResults executeQuery() throws SQLException {
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
         ResultSet rs = preparedStatement.executeQuery();
-        long endTime = System.currentTimeMillis();
 
-        dbConnection.maybeLogTime(sql, endTime - startTime);
+        recordTime(QueryProfiler.Operation.QUERY, System.nanoTime() - startTime, 0);
 
-        return new DBResults(rs, preparedStatement);
+        return new DBResults(rs, this);
     }
 
     public DBPreparedStatement clearParameters() throws SQLException {
@@ -173,14 +188,50 @@ public class DBPreparedStatement {
 
     public void addBatch() throws SQLException {
         preparedStatement.addBatch();
+        batchSize++;
     }
 
     public int[] executeBatch() throws SQLException {
-        return preparedStatement.executeBatch();
+        long startTime = System.nanoTime();
+        int[] result = preparedStatement.executeBatch();
+
+        if (batchSize > 0) {
+            recordTime(QueryProfiler.Operation.BATCH, System.nanoTime() - startTime, batchSize);
+        }
+        batchSize = 0;
+
+        long rows = 0;
+        for (int count : result) {
+            // Drivers may report SUCCESS_NO_INFO (-2) instead of a count
+            if (count > 0) {
+                rows += count;
+            }
+        }
+        QueryProfiler.recordRows(sql, rows);
+
+        return result;
     }
 
+    /**
+     * The SQL this statement was prepared from.
+     */
+    String getSql() {
+        return sql;
+    }
+
+    private void recordTime(QueryProfiler.Operation operation, long nanos, int batchSize) {
+        dbConnection.maybeLogTime(sql, TimeUnit.NANOSECONDS.toMillis(nanos));
+        QueryProfiler.record(sql, operation, nanos, batchSize);
+    }
+
+    /**
+     * Hand our statement back to the connection for reuse.  Only the first call counts.
+     */
     private void cleanup() throws SQLException {
-        preparedStatement.close();
+        if (!released) {
+            released = true;
+            dbConnection.releaseStatement(sql, preparedStatement);
+        }
     }
 
     public void close() throws SQLException {
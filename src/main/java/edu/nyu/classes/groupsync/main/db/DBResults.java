@@ -42,25 +42,58 @@ import java.util.stream.StreamSupport;
  */
 public class DBResults implements Iterable<ResultSet>, Iterator<ResultSet>, AutoCloseable {
     private final PreparedStatement originalStatement;
+    private final DBPreparedStatement owner;
     private final ResultSet resultSet;
     private boolean hasRowReady;
+    private boolean closed;
+    private long rowCount;
 
     public DBResults(ResultSet rs, PreparedStatement originalStatement) {
         this.resultSet = rs;
         this.originalStatement = originalStatement;
+        this.owner = null;
+    }
+
+    /**
+     * Results whose statement goes back to `owner` (and its connection's statement cache) when we're closed.
+     */
+    public DBResults(ResultSet rs, DBPreparedStatement owner) {
+        this.resultSet = rs;
+        this.originalStatement = null;
+        this.owner = owner;
     }
 
     @Override
     public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
         resultSet.close();
-        originalStatement.close();
+
+        if (owner != null) {
+            QueryProfiler.recordRows(owner.getSql(), rowCount);
+            owner.close();
+        } else {
+            originalStatement.close();
+        }
     }
 
     @Override
     public boolean hasNext() {
         try {
+            if (closed) {
+                return false;
+            }
+
             if (!hasRowReady) {
                 hasRowReady = resultSet.next();
+
+                if (!hasRowReady) {
+                    // Read to the end.  Free up our statement for reuse.
+                    this.close();
+                }
             }
 
             return hasRowReady;
@@ -80,6 +113,7 @@ public class DBResults implements Iterable<ResultSet>, Iterator<ResultSet>, Auto
         }
 
         hasRowReady = false;
+        rowCount++;
         return resultSet;
     }
 
@@ -0,0 +1,208 @@
+/**********************************************************************************
+ *
+ * Copyright (c) 2019 The Sakai Foundation
+ *
+ * Original developers:
+ *
+ *   New York University
+ *   Payten Giles
+ *   Mark Triggs
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package edu.nyu.classes.groupsync.main.db;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.nyu.classes.groupsync.main.metrics.Histogram;
+import edu.nyu.classes.groupsync.main.metrics.Metrics;
+
+/**
+ * Aggregate statistics for every statement run through DBPreparedStatement, grouped by fingerprint (the SQL with its
+ * literals and IN lists collapsed, so "in (?,?,?)" and "in (?,?)" count as the same statement).
+ *
+ * Latencies, row counts and batch sizes go to the metrics registry under groupsync_db_*, and `report` gives a top-N
+ * summary by total time.
+ */
+public class QueryProfiler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryProfiler.class);
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b[0-9]+\\b");
+    private static final Pattern IN_LIST = Pattern.compile("(?i)\\bin\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private static final int MAX_FINGERPRINT_LENGTH = 300;
+
+    private static volatile boolean enabled = true;
+    private static volatile long slowQueryThresholdMs = -1;
+
+    private static final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+    private static final Map<String, Stats> statsByFingerprint = new ConcurrentHashMap<>();
+
+    public enum Operation {
+        QUERY, UPDATE, BATCH;
+
+        String label() {
+            return name().toLowerCase(java.util.Locale.ROOT);
+        }
+    }
+
+    private static class Stats {
+        public final String fingerprint;
+        public final LongAdder calls = new LongAdder();
+        public final LongAdder totalNanos = new LongAdder();
+        public final LongAdder rows = new LongAdder();
+        public final Histogram latency;
+
+        public Stats(String fingerprint) {
+            this.fingerprint = fingerprint;
+            this.latency = Metrics.histogram("groupsync_db_statement_ms", "Time taken to execute each database statement",
+                                             "statement", fingerprint);
+        }
+
+        // Only batched statements get one of these
+        public Histogram batchSizes() {
+            return Metrics.histogram("groupsync_db_batch_size", "Statements per JDBC batch",
+                                     "statement", fingerprint);
+        }
+    }
+
+    private QueryProfiler() {
+        // No public constructor
+    }
+
+    /**
+     * Turn profiling on or off, and log (at WARN) any statement slower than `slowQueryThresholdMs` (-1 to never).
+     */
+    public static void configure(boolean enabled, long slowQueryThresholdMs) {
+        QueryProfiler.enabled = enabled;
+        QueryProfiler.slowQueryThresholdMs = slowQueryThresholdMs;
+    }
+
+    /**
+     * Log a top-N report every `intervalMs`.
+     */
+    public static void scheduleReport(final long intervalMs, final int topN) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "QueryProfilerReport");
+            t.setDaemon(true);
+            return t;
+        });
+
+        reporter.scheduleAtFixedRate(() -> {
+            try {
+                LOG.info("Top {} database statements by total time:\n{}", topN, report(topN));
+            } catch (Exception e) {
+                LOG.warn("Failed to produce query report: " + e);
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    static void record(String sql, Operation operation, long nanos, int batchSize) {
+        if (!enabled) {
+            return;
+        }
+
+        Stats stats = stats(sql);
+        long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+
+        stats.calls.increment();
+        stats.totalNanos.add(nanos);
+        stats.latency.record(ms);
+
+        if (operation == Operation.BATCH) {
+            stats.batchSizes().record(batchSize);
+        }
+
+        Metrics.counter("groupsync_db_statements_total", "Database statements executed",
+                        "operation", operation.label())
+            .inc();
+
+        if (slowQueryThresholdMs >= 0 && ms >= slowQueryThresholdMs) {
+            LOG.warn(String.format("Slow %s (%d ms%s): %s",
+                                   operation.label(), ms,
+                                   (operation == Operation.BATCH) ? ", batch of " + batchSize : "",
+                                   stats.fingerprint));
+        }
+    }
+
+    static void recordRows(String sql, long rowCount) {
+        if (!enabled) {
+            return;
+        }
+
+        stats(sql).rows.add(rowCount);
+
+        Metrics.counter("groupsync_db_rows_total", "Rows read from or written to the database")
+            .inc(rowCount);
+    }
+
+    /**
+     * The `topN` statements by total time spent, as a table.
+     */
+    public static String report(int topN) {
+        List<Stats> all = new ArrayList<>(statsByFingerprint.values());
+        all.sort(Comparator.comparingLong((Stats s) -> s.totalNanos.sum()).reversed());
+
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("%10s %8s %8s %8s %8s %10s  %s%n", "total_ms", "calls", "p50_ms", "p99_ms", "max_ms", "rows", "statement"));
+
+        for (Stats stats : all.subList(0, Math.min(topN, all.size()))) {
+            result.append(String.format("%10d %8d %8d %8d %8d %10d  %s%n",
+                                        TimeUnit.NANOSECONDS.toMillis(stats.totalNanos.sum()),
+                                        stats.calls.sum(),
+                                        stats.latency.quantile(0.5),
+                                        stats.latency.quantile(0.99),
+                                        stats.latency.getMax(),
+                                        stats.rows.sum(),
+                                        stats.fingerprint));
+        }
+
+        return result.toString();
+    }
+
+    private static Stats stats(String sql) {
+        String fingerprint = fingerprints.computeIfAbsent(sql, QueryProfiler::fingerprint);
+
+        return statsByFingerprint.computeIfAbsent(fingerprint, Stats::new);
+    }
+
+    static String fingerprint(String sql) {
+        String result = STRING_LITERAL.matcher(sql).replaceAll("?");
+        result = NUMBER_LITERAL.matcher(result).replaceAll("?");
+        result = IN_LIST.matcher(result).replaceAll("in (...)");
+        result = WHITESPACE.matcher(result).replaceAll(" ").trim();
+
+        if (result.length() > MAX_FINGERPRINT_LENGTH) {
+            result = result.substring(0, MAX_FINGERPRINT_LENGTH) + "...";
+        }
+
+        return result;
+    }
+}
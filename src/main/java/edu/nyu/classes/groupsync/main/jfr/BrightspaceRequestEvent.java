@@ -0,0 +1,23 @@
+package edu.nyu.classes.groupsync.main.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// One HTTP request to the Brightspace API
+@Name("groupsync.BrightspaceRequest")
+@Label("Brightspace Request")
+@Category({"groupsync", "External Calls"})
+@StackTrace(false)
+public class BrightspaceRequestEvent extends Event {
+    @Label("Method")
+    public String method;
+
+    @Label("Endpoint")
+    public String endpoint;
+
+    @Label("Status")
+    public int status;
+}
@@ -0,0 +1,23 @@
+package edu.nyu.classes.groupsync.main.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// One call to DB.transaction
+@Name("groupsync.DBTransaction")
+@Label("Database Transaction")
+@Category({"groupsync", "Database"})
+@StackTrace(false)
+public class DBTransactionEvent extends Event {
+    @Label("Action")
+    public String action;
+
+    @Label("Description")
+    public String description;
+
+    @Label("Shared Connection")
+    public boolean sharedConnection;
+}
@@ -0,0 +1,27 @@
+package edu.nyu.classes.groupsync.main.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// One batch request to Google, including the wait for the rate limiter to
+// allow it.
+@Name("groupsync.GoogleBatch")
+@Label("Google Batch Request")
+@Category({"groupsync", "External Calls"})
+@StackTrace(false)
+public class GoogleBatchEvent extends Event {
+    @Label("Target")
+    public String target;
+
+    @Label("Lane")
+    public String lane;
+
+    @Label("Quota Class")
+    public String quotaClass;
+
+    @Label("Batch Size")
+    public long batchSize;
+}
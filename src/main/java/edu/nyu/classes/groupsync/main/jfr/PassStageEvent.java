@@ -0,0 +1,29 @@
+package edu.nyu.classes.groupsync.main.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// One stage of a replication pass (see Replicator.Stage).  The whole pass is
+// a stage too, named "pass".
+@Name("groupsync.PassStage")
+@Label("Replication Pass Stage")
+@Category({"groupsync", "Replication"})
+@StackTrace(false)
+public class PassStageEvent extends Event {
+    @Label("Source")
+    public String source;
+
+    @Label("Target")
+    public String target;
+
+    @Label("Stage")
+    public String stage;
+
+    @Label("Group Count")
+    @Description("Groups handled by this stage, if it knows")
+    public long groupCount;
+}
@@ -0,0 +1,30 @@
+package edu.nyu.classes.groupsync.main.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Time a caller spent in RateLimiter.wantQueries, queued behind other lanes
+// or waiting for budget.  Most calls don't wait at all, so only the ones
+// that did are recorded.
+@Name("groupsync.RateLimitWait")
+@Label("Rate Limit Wait")
+@Category({"groupsync", "Rate Limiting"})
+@StackTrace(false)
+@Threshold("1 ms")
+public class RateLimitWaitEvent extends Event {
+    @Label("Limiter")
+    public String limiter;
+
+    @Label("Lane")
+    public String lane;
+
+    @Label("Quota Class")
+    public String quotaClass;
+
+    @Label("Queries")
+    public long queries;
+}
@@ -0,0 +1,40 @@
+package edu.nyu.classes.groupsync.main.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+
+// A count of things that have happened.  Only goes up.
+public class Counter extends Metric {
+    private LongAdder value = new LongAdder();
+
+    Counter(String name, String help, Map<String, String> labels) {
+        super(name, help, labels);
+    }
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void inc(long n) {
+        value.add(n);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    String type() {
+        return "counter";
+    }
+
+    void writePrometheus(StringBuilder out) {
+        writeSample(out, "", null, null, get());
+    }
+
+    @SuppressWarnings("unchecked")
+    void writeJSON(JSONObject out) {
+        out.put("value", get());
+    }
+}
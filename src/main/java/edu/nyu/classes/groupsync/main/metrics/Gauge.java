@@ -0,0 +1,38 @@
+package edu.nyu.classes.groupsync.main.metrics;
+
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+import org.json.simple.JSONObject;
+
+// A value that goes up and down, read whenever someone asks for it.
+public class Gauge extends Metric {
+    private DoubleSupplier value;
+
+    Gauge(String name, String help, Map<String, String> labels, DoubleSupplier value) {
+        super(name, help, labels);
+        this.value = value;
+    }
+
+    public double get() {
+        try {
+            return value.getAsDouble();
+        } catch (RuntimeException e) {
+            return Double.NaN;
+        }
+    }
+
+    String type() {
+        return "gauge";
+    }
+
+    void writePrometheus(StringBuilder out) {
+        writeSample(out, "", null, null, get());
+    }
+
+    @SuppressWarnings("unchecked")
+    void writeJSON(JSONObject out) {
+        double v = get();
+        out.put("value", Double.isNaN(v) ? null : v);
+    }
+}
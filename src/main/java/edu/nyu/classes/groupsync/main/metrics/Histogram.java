@@ -0,0 +1,143 @@
+package edu.nyu.classes.groupsync.main.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+
+// The distribution of some (non-negative) value, like a latency in ms.
+//
+// Buckets are laid out HDR histogram style: values are grouped by their
+// highest set bit, and each of those groups is split into SUB_BUCKETS equal
+// buckets.  So a recorded value is always within 1/SUB_BUCKETS (~3%) of the
+// truth, whether it's 5 ms or 5 hours, and we never need to know the range in
+// advance.  Recording is lock free.
+public class Histogram extends Metric {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // One group of exact buckets for values below SUB_BUCKETS, then one for
+    // each possible highest bit from there up.
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static final double[] REPORTED_QUANTILES = new double[] { 0.5, 0.9, 0.99, 0.999 };
+
+    private AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private LongAdder count = new LongAdder();
+    private LongAdder sum = new LongAdder();
+    private AtomicLong max = new AtomicLong(0);
+
+    Histogram(String name, String help, Map<String, String> labels) {
+        super(name, help, labels);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // The value that `quantile` (0 to 1) of recorded values were at or
+    // below.  Reported as the top of the bucket it fell in.
+    public long quantile(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long wanted = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+
+            if (seen >= wanted) {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+
+        return ((shift + 1) * SUB_BUCKETS) + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = (index / SUB_BUCKETS) - 1;
+        long mantissa = (index % SUB_BUCKETS) + SUB_BUCKETS;
+
+        long upper = ((mantissa + 1) << shift) - 1;
+
+        // The very top bucket runs off the end of a long
+        return (upper < 0) ? Long.MAX_VALUE : upper;
+    }
+
+    String type() {
+        return "summary";
+    }
+
+    void writePrometheus(StringBuilder out) {
+        for (double q : REPORTED_QUANTILES) {
+            writeSample(out, "", "quantile", String.valueOf(q), quantile(q));
+        }
+
+        writeSample(out, "_sum", null, null, getSum());
+        writeSample(out, "_count", null, null, getCount());
+    }
+
+    @SuppressWarnings("unchecked")
+    void writeJSON(JSONObject out) {
+        out.put("count", getCount());
+        out.put("sum", getSum());
+        out.put("max", getMax());
+        out.put("p50", quantile(0.5));
+        out.put("p90", quantile(0.9));
+        out.put("p99", quantile(0.99));
+        out.put("p999", quantile(0.999));
+    }
+}
@@ -0,0 +1,102 @@
+package edu.nyu.classes.groupsync.main.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+
+// Something we measure, identified by its name and labels.  See Metrics.
+public abstract class Metric {
+    private String name;
+    private String help;
+    private Map<String, String> labels;
+
+    protected Metric(String name, String help, Map<String, String> labels) {
+        this.name = name;
+        this.help = help;
+        this.labels = Collections.unmodifiableMap(new LinkedHashMap<>(labels));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    public Map<String, String> getLabels() {
+        return labels;
+    }
+
+    // The Prometheus type of this metric
+    abstract String type();
+
+    // Our samples, in the Prometheus text format
+    abstract void writePrometheus(StringBuilder out);
+
+    abstract void writeJSON(JSONObject out);
+
+    // Write a single Prometheus sample, with `extraLabel` (if any) added to
+    // our own labels.
+    protected void writeSample(StringBuilder out, String suffix, String extraLabel, String extraValue, double value) {
+        out.append(name).append(suffix);
+
+        if (!labels.isEmpty() || extraLabel != null) {
+            out.append("{");
+
+            boolean first = true;
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                if (!first) {
+                    out.append(",");
+                }
+
+                appendLabel(out, label.getKey(), label.getValue());
+                first = false;
+            }
+
+            if (extraLabel != null) {
+                if (!first) {
+                    out.append(",");
+                }
+
+                appendLabel(out, extraLabel, extraValue);
+            }
+
+            out.append("}");
+        }
+
+        out.append(" ").append(formatValue(value)).append("\n");
+    }
+
+    private void appendLabel(StringBuilder out, String label, String value) {
+        out.append(label).append("=\"");
+
+        for (char ch : value.toCharArray()) {
+            switch (ch) {
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            default:
+                out.append(ch);
+            }
+        }
+
+        out.append("\"");
+    }
+
+    private String formatValue(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,126 @@
+package edu.nyu.classes.groupsync.main.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+// The registry for everything we measure.  Metrics are created the first time
+// they're asked for and live for the life of the process, so it's fine to
+// look one up every time you need it:
+//
+//   Metrics.counter("groupsync_things_total", "Things done", "target", targetId).inc();
+//
+// Labels are given as alternating names and values.  See MetricsServer for
+// getting them back out again.
+public class Metrics {
+    // Keyed on name then labels, which keeps each metric's series together
+    // when we list them.
+    private static ConcurrentSkipListMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+        // No public constructor
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        Map<String, String> labelMap = labelMap(labels);
+
+        return (Counter) metrics.computeIfAbsent(key(name, labelMap), (k) -> new Counter(name, help, labelMap));
+    }
+
+    public static Histogram histogram(String name, String help, String... labels) {
+        Map<String, String> labelMap = labelMap(labels);
+
+        return (Histogram) metrics.computeIfAbsent(key(name, labelMap), (k) -> new Histogram(name, help, labelMap));
+    }
+
+    // Register a gauge that reads `value` whenever it's scraped.  Registering
+    // the same gauge again replaces the old one.
+    public static Gauge gauge(String name, String help, DoubleSupplier value, String... labels) {
+        Map<String, String> labelMap = labelMap(labels);
+        Gauge gauge = new Gauge(name, help, labelMap, value);
+
+        metrics.put(key(name, labelMap), gauge);
+
+        return gauge;
+    }
+
+    // The histograms already registered as `name` whose labels include all of
+    // `labels`.  Unlike `histogram`, this never creates one.
+    public static List<Histogram> findHistograms(String name, String... labels) {
+        Map<String, String> wanted = labelMap(labels);
+        List<Histogram> result = new ArrayList<>();
+
+        for (Metric metric : metrics.subMap(name + " ", name + " \uffff").values()) {
+            if (metric instanceof Histogram && metric.getLabels().entrySet().containsAll(wanted.entrySet())) {
+                result.add((Histogram) metric);
+            }
+        }
+
+        return result;
+    }
+
+    // Everything, in the Prometheus text exposition format
+    public static String prometheusText() {
+        StringBuilder out = new StringBuilder();
+        String lastName = null;
+
+        for (Metric metric : metrics.values()) {
+            if (!metric.getName().equals(lastName)) {
+                out.append("# HELP ").append(metric.getName()).append(" ").append(metric.getHelp().replace("\n", " ")).append("\n");
+                out.append("# TYPE ").append(metric.getName()).append(" ").append(metric.type()).append("\n");
+                lastName = metric.getName();
+            }
+
+            metric.writePrometheus(out);
+        }
+
+        return out.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static String json() {
+        JSONArray result = new JSONArray();
+
+        for (Metric metric : metrics.values()) {
+            JSONObject entry = new JSONObject();
+            entry.put("name", metric.getName());
+            entry.put("type", metric.type());
+            entry.put("labels", new JSONObject(metric.getLabels()));
+
+            metric.writeJSON(entry);
+
+            result.add(entry);
+        }
+
+        JSONObject wrapper = new JSONObject();
+        wrapper.put("metrics", result);
+
+        return wrapper.toJSONString();
+    }
+
+    private static Map<String, String> labelMap(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be given as name/value pairs");
+        }
+
+        Map<String, String> result = new LinkedHashMap<>();
+
+        for (int i = 0; i < labels.length; i += 2) {
+            result.put(labels[i], (labels[i + 1] == null) ? "" : labels[i + 1]);
+        }
+
+        return result;
+    }
+
+    // The space sorts before any character allowed in a metric name, so all
+    // of a metric's series sort together.
+    private static String key(String name, Map<String, String> labels) {
+        return name + " " + labels.toString();
+    }
+}
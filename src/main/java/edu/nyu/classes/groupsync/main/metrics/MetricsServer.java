@@ -0,0 +1,96 @@
+package edu.nyu.classes.groupsync.main.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A tiny HTTP server for our metrics and other status pages.  Serves:
+//
+//   /metrics       -- Prometheus text format
+//   /metrics.json  -- the same, as JSON
+//
+// plus anything else added with `route`.
+public class MetricsServer {
+    private static Logger logger = LoggerFactory.getLogger(MetricsServer.class);
+
+    private HttpServer server;
+
+    // A response with a status other than 200
+    public static class Page {
+        public final int status;
+        public final String body;
+
+        public Page(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    public MetricsServer(String bindAddress, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        server.setExecutor(Executors.newSingleThreadExecutor((r) -> {
+            Thread t = new Thread(r, "MetricsServer");
+            t.setDaemon(true);
+            return t;
+        }));
+
+        route("/metrics", "text/plain; version=0.0.4; charset=utf-8", Metrics::prometheusText);
+        route("/metrics.json", "application/json", Metrics::json);
+    }
+
+    // Serve whatever `body` returns at `path`
+    public void route(String path, String contentType, Supplier<String> body) {
+        routePage(path, contentType, () -> new Page(200, body.get()));
+    }
+
+    // Serve whatever `page` returns at `path`, with its status
+    public void routePage(String path, String contentType, Supplier<Page> page) {
+        server.createContext(path, (exchange) -> respond(exchange, path, contentType, page));
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Serving metrics on {}", server.getAddress());
+    }
+
+    private void respond(HttpExchange exchange, String path, String contentType, Supplier<Page> page) throws IOException {
+        try {
+            if (!exchange.getRequestURI().getPath().equals(path)) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            byte[] response;
+            int status;
+
+            try {
+                Page result = page.get();
+                response = result.body.getBytes(StandardCharsets.UTF_8);
+                status = result.status;
+            } catch (Exception e) {
+                logger.error("Failed to produce {}: {}", path, e.getMessage(), e);
+                response = "Internal error\n".getBytes(StandardCharsets.UTF_8);
+                contentType = "text/plain";
+                status = 500;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, response.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
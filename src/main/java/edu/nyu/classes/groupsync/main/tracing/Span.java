@@ -0,0 +1,128 @@
+package edu.nyu.classes.groupsync.main.tracing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// One timed piece of work within a trace (see Tracer).  Spans nest: the span
+// that was open on a thread when another starts becomes its parent.
+//
+// Spans are meant to be used with try-with-resources, and are only touched by
+// the thread that opened them.
+public class Span implements AutoCloseable {
+    // Handed out when there's no trace to record into.  Does nothing.
+    static final Span NOOP = new Span();
+
+    private boolean recording;
+    private String name;
+    private String traceId;
+    private String spanId;
+    private Span parent;
+    private Span root;
+
+    // Only tracked on the root span
+    private int spanCount = 1;
+    private int droppedSpans = 0;
+
+    private long startEpochMs;
+    private long startNanos;
+    private long durationNanos = -1;
+
+    private Map<String, Object> attributes = new LinkedHashMap<>();
+    private List<Span> children = new ArrayList<>();
+
+    private Span() {
+        this.recording = false;
+    }
+
+    Span(String name, String traceId, String spanId, Span parent) {
+        this.recording = true;
+        this.name = name;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parent = parent;
+        this.root = (parent == null) ? this : parent.root;
+
+        this.startEpochMs = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+
+        if (parent != null) {
+            parent.children.add(this);
+        }
+    }
+
+    // Attach something worth knowing (group count, batch size, ...).  Values
+    // should be strings, numbers or booleans.
+    public Span attr(String key, Object value) {
+        if (recording) {
+            attributes.put(key, value);
+        }
+
+        return this;
+    }
+
+    public void close() {
+        if (recording && durationNanos < 0) {
+            durationNanos = System.nanoTime() - startNanos;
+            Tracer.finished(this);
+        }
+    }
+
+    // Count a new span against our trace's limit.  False if there's no room.
+    boolean reserveSpan(int maxSpans) {
+        if (root.spanCount >= maxSpans) {
+            root.droppedSpans++;
+            return false;
+        }
+
+        root.spanCount++;
+        return true;
+    }
+
+    public int getDroppedSpans() {
+        return droppedSpans;
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public Span getParent() {
+        return parent;
+    }
+
+    public long getStartEpochMs() {
+        return startEpochMs;
+    }
+
+    public long getStartEpochNanos() {
+        return startEpochMs * 1000000;
+    }
+
+    // -1 if the span is still open
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public Map<String, Object> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    public List<Span> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+}
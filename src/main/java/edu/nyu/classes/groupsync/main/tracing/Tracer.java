@@ -0,0 +1,258 @@
+package edu.nyu.classes.groupsync.main.tracing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A lightweight tracer for our replication passes.  A thread starts a trace
+// with `startTrace`, and anything it calls can then open spans within it:
+//
+//   try (Span span = Tracer.span("google_batch").attr("batch_size", n)) { ... }
+//
+// Outside of a trace, `span` hands back a span that records nothing, so it's
+// cheap to sprinkle spans through code that isn't always part of a pass.
+//
+// We keep the last few finished traces in memory (see `recentTracesJSON`),
+// and can also write each one out as an OpenTelemetry (OTLP/JSON) file.
+public class Tracer {
+    private static Logger logger = LoggerFactory.getLogger(Tracer.class);
+
+    private static ThreadLocal<Span> currentSpan = new ThreadLocal<>();
+
+    // A pass over thousands of groups shouldn't keep thousands of spans
+    // around.  Past this, spans are counted but not recorded.
+    private static final int MAX_SPANS_PER_TRACE = 5000;
+
+    // Guarded by `recentTraces`
+    private static LinkedList<Span> recentTraces = new LinkedList<>();
+    private static volatile int tracesToKeep = 20;
+    private static volatile File exportDirectory = null;
+
+    private Tracer() {
+        // No public constructor
+    }
+
+    // Keep the last `tracesToKeep` traces in memory and, if `exportDirectory`
+    // isn't null, write each finished trace there too.
+    public static void configure(int tracesToKeep, String exportDirectory) {
+        Tracer.tracesToKeep = Math.max(0, tracesToKeep);
+
+        if (exportDirectory != null) {
+            File dir = new File(exportDirectory);
+            dir.mkdirs();
+            Tracer.exportDirectory = dir;
+        }
+    }
+
+    // Start a new trace on this thread.  Traces don't nest, so this should be
+    // called by whatever sits at the top of a thread's work (a Replicator's
+    // pass, say).
+    public static Span startTrace(String name) {
+        Span span = new Span(name, randomHex(16), randomHex(8), null);
+        currentSpan.set(span);
+
+        return span;
+    }
+
+    // Open a span within the current thread's trace, if it has one
+    public static Span span(String name) {
+        Span parent = currentSpan.get();
+
+        if (parent == null || !parent.reserveSpan(MAX_SPANS_PER_TRACE)) {
+            return Span.NOOP;
+        }
+
+        Span span = new Span(name, parent.getTraceId(), randomHex(8), parent);
+        currentSpan.set(span);
+
+        return span;
+    }
+
+    // The innermost open span on this thread (NOOP if none).  Handy for
+    // adding attributes to a span opened further up the stack.
+    public static Span current() {
+        Span span = currentSpan.get();
+
+        return (span == null) ? Span.NOOP : span;
+    }
+
+    static void finished(Span span) {
+        if (currentSpan.get() == span) {
+            currentSpan.set(span.getParent());
+        }
+
+        if (span.getParent() == null) {
+            if (span.getDroppedSpans() > 0) {
+                span.attr("dropped_spans", span.getDroppedSpans());
+            }
+
+            synchronized (recentTraces) {
+                recentTraces.addLast(span);
+
+                while (recentTraces.size() > tracesToKeep) {
+                    recentTraces.removeFirst();
+                }
+            }
+
+            if (exportDirectory != null) {
+                export(span);
+            }
+        }
+    }
+
+    // Our recent traces as nested JSON, newest first
+    @SuppressWarnings("unchecked")
+    public static String recentTracesJSON() {
+        List<Span> traces;
+        synchronized (recentTraces) {
+            traces = new ArrayList<>(recentTraces);
+        }
+
+        JSONArray result = new JSONArray();
+
+        for (int i = traces.size() - 1; i >= 0; i--) {
+            result.add(toJSON(traces.get(i)));
+        }
+
+        JSONObject wrapper = new JSONObject();
+        wrapper.put("traces", result);
+
+        return wrapper.toJSONString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject toJSON(Span span) {
+        JSONObject result = new JSONObject();
+
+        result.put("name", span.getName());
+        result.put("trace_id", span.getTraceId());
+        result.put("span_id", span.getSpanId());
+        result.put("start_ms", span.getStartEpochMs());
+        result.put("duration_ms", span.getDurationNanos() / 1000000.0);
+        result.put("attributes", new JSONObject(span.getAttributes()));
+
+        JSONArray children = new JSONArray();
+        for (Span child : span.getChildren()) {
+            children.add(toJSON(child));
+        }
+        result.put("children", children);
+
+        return result;
+    }
+
+    // Write a trace out in the OTLP/JSON file format, which OpenTelemetry
+    // collectors (and anything that reads their files) can load.
+    @SuppressWarnings("unchecked")
+    private static void export(Span trace) {
+        JSONArray spans = new JSONArray();
+        addOTLPSpans(trace, spans);
+
+        JSONObject scope = new JSONObject();
+        scope.put("name", "groupsync");
+
+        JSONObject scopeSpans = new JSONObject();
+        scopeSpans.put("scope", scope);
+        scopeSpans.put("spans", spans);
+
+        JSONArray scopeSpansList = new JSONArray();
+        scopeSpansList.add(scopeSpans);
+
+        JSONArray resourceAttributes = new JSONArray();
+        resourceAttributes.add(otlpAttribute("service.name", "groupsync"));
+
+        JSONObject resource = new JSONObject();
+        resource.put("attributes", resourceAttributes);
+
+        JSONObject resourceSpans = new JSONObject();
+        resourceSpans.put("resource", resource);
+        resourceSpans.put("scopeSpans", scopeSpansList);
+
+        JSONArray resourceSpansList = new JSONArray();
+        resourceSpansList.add(resourceSpans);
+
+        JSONObject document = new JSONObject();
+        document.put("resourceSpans", resourceSpansList);
+
+        File file = new File(exportDirectory, String.format("trace-%d-%s.json", trace.getStartEpochMs(), trace.getTraceId()));
+
+        try {
+            Files.write(file.toPath(), document.toJSONString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("Failed to write trace to {}: {}", file, e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addOTLPSpans(Span span, JSONArray result) {
+        JSONObject otlp = new JSONObject();
+
+        otlp.put("traceId", span.getTraceId());
+        otlp.put("spanId", span.getSpanId());
+
+        if (span.getParent() != null) {
+            otlp.put("parentSpanId", span.getParent().getSpanId());
+        }
+
+        otlp.put("name", span.getName());
+        otlp.put("kind", 1);
+        otlp.put("startTimeUnixNano", String.valueOf(span.getStartEpochNanos()));
+        otlp.put("endTimeUnixNano", String.valueOf(span.getStartEpochNanos() + Math.max(span.getDurationNanos(), 0)));
+
+        JSONArray attributes = new JSONArray();
+        for (Map.Entry<String, Object> attribute : span.getAttributes().entrySet()) {
+            attributes.add(otlpAttribute(attribute.getKey(), attribute.getValue()));
+        }
+        otlp.put("attributes", attributes);
+
+        result.add(otlp);
+
+        for (Span child : span.getChildren()) {
+            addOTLPSpans(child, result);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject otlpAttribute(String key, Object value) {
+        JSONObject wrappedValue = new JSONObject();
+
+        if (value instanceof Integer || value instanceof Long) {
+            // OTLP/JSON wants 64 bit ints as strings
+            wrappedValue.put("intValue", String.valueOf(value));
+        } else if (value instanceof Number) {
+            wrappedValue.put("doubleValue", ((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            wrappedValue.put("boolValue", value);
+        } else {
+            wrappedValue.put("stringValue", String.valueOf(value));
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("key", key);
+        result.put("value", wrappedValue);
+
+        return result;
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder result = new StringBuilder(bytes * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int i = 0; i < bytes; i++) {
+            result.append(String.format("%02x", random.nextInt(256)));
+        }
+
+        return result.toString();
+    }
+}